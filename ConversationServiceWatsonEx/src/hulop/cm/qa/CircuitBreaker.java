@@ -0,0 +1,424 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.wink.json4j.JSONObject;
+
+import hulop.cm.util.CommonUtil;
+
+/*
+ * Guards calls to one Watson workspace.
+ *
+ * - Circuit breaker: after failure_threshold consecutive failures (transport
+ *   errors, timeouts and 5xx; a 4xx is passed straight through) the circuit
+ *   opens and calls fail immediately for open_seconds, then a single trial
+ *   call is let through.
+ * - Retry budget: each call earns retry_ratio tokens (capped), and a failed
+ *   call is retried only if a whole token is available, so retries stay a
+ *   fraction of traffic while Watson is unhealthy.
+ * - Hedging: when enabled, a second identical call is started if the first
+ *   has not answered within the recent latency percentile, and the first
+ *   successful answer wins. Hedged calls run on a pool of at most
+ *   hedge_threads; when it is full the call is simply not hedged.
+ *
+ * executeAsync() applies the same rules to calls that return a future. No
+ * thread waits on them: retries start from the failed call's completion and
+ * the hedge is started by a timer.
+ */
+public class CircuitBreaker {
+	private static final int SAMPLES = 100;
+	private static final Map<String, CircuitBreaker> instances = new HashMap<String, CircuitBreaker>();
+	private static ExecutorService sHedgeExecutor;
+	private static ScheduledExecutorService sTimer;
+
+	private final String mName;
+	private final long mTimeout;
+	private int mFailureThreshold = 5, mMaxRetries = 1, mPercentile = 95;
+	private long mOpenMillis = 30 * 1000, mMinHedgeDelay = 500;
+	private double mRetryRatio = 0.2, mMaxTokens = 10;
+	private boolean mHedge;
+
+	private int mFailures;
+	private long mOpenUntil;
+	private boolean mTrial;
+	private double mTokens;
+	private final long[] mLatencies = new long[SAMPLES];
+	private int mLatencyIndex, mLatencyCount;
+
+	public static synchronized CircuitBreaker getInstance(String name, long timeout) {
+		CircuitBreaker instance = instances.get(name);
+		if (instance == null) {
+			instances.put(name, instance = new CircuitBreaker(name, timeout));
+		}
+		return instance;
+	}
+
+	protected CircuitBreaker(String name, long timeout) {
+		mName = name;
+		mTimeout = timeout;
+		try {
+			JSONObject config = CommonUtil.getConfig().getJSONObject("watson_config").optJSONObject("circuit_breaker");
+			if (config != null) {
+				mFailureThreshold = config.optInt("failure_threshold", mFailureThreshold);
+				mOpenMillis = config.optLong("open_seconds", mOpenMillis / 1000) * 1000;
+				mMaxRetries = config.optInt("max_retries", mMaxRetries);
+				mRetryRatio = config.optDouble("retry_ratio", mRetryRatio);
+				mMaxTokens = config.optDouble("retry_tokens", mMaxTokens);
+				mHedge = config.optBoolean("hedge", mHedge);
+				mPercentile = config.optInt("hedge_percentile", mPercentile);
+				mMinHedgeDelay = config.optLong("hedge_min_delay", mMinHedgeDelay);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		mTokens = mMaxTokens;
+	}
+
+	public <T> T execute(Callable<T> call) throws Exception {
+		for (int retry = 0;; retry++) {
+			if (!allowRequest()) {
+				throw new Exception("Circuit open for " + mName);
+			}
+			long start = System.currentTimeMillis();
+			try {
+				T result = mHedge ? hedge(call) : call.call();
+				onSuccess(System.currentTimeMillis() - start);
+				return result;
+			} catch (Exception e) {
+				if (!isWorkspaceFailure(e)) {
+					onIgnored();
+					throw e;
+				}
+				onFailure();
+				if (retry >= mMaxRetries || !withdrawRetry()) {
+					throw e;
+				}
+				System.err.println(mName + " retry - " + e.getMessage());
+			}
+		}
+	}
+
+	public <T> CompletableFuture<T> executeAsync(Callable<CompletableFuture<T>> call) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		attempt(call, result, 0);
+		return result;
+	}
+
+	private <T> void attempt(final Callable<CompletableFuture<T>> call, final CompletableFuture<T> result, final int retry) {
+		if (result.isDone()) {
+			return;
+		}
+		if (!allowRequest()) {
+			result.completeExceptionally(new Exception("Circuit open for " + mName));
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		final CompletableFuture<T> future = mHedge ? hedgeAsync(call) : start(call);
+		future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				if (error == null) {
+					onSuccess(System.currentTimeMillis() - start);
+					result.complete(value);
+					return;
+				}
+				Exception e = unwrap(error);
+				if (!isWorkspaceFailure(e)) {
+					onIgnored();
+					result.completeExceptionally(e);
+					return;
+				}
+				onFailure();
+				if (retry >= mMaxRetries || !withdrawRetry()) {
+					result.completeExceptionally(e);
+					return;
+				}
+				System.err.println(mName + " retry - " + e.getMessage());
+				attempt(call, result, retry + 1);
+			}
+		});
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				if (result.isCancelled()) {
+					future.cancel(false);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Only transport errors, timeouts and 5xx are held against the workspace.
+	 * A 4xx is caused by the request itself and is not retried.
+	 */
+	private static boolean isWorkspaceFailure(Exception e) {
+		if (e instanceof HttpResponseException) {
+			return ((HttpResponseException) e).getStatusCode() >= 500;
+		}
+		return e instanceof IOException || e instanceof TimeoutException;
+	}
+
+	private synchronized boolean allowRequest() {
+		mTokens = Math.min(mMaxTokens, mTokens + mRetryRatio);
+		if (mOpenUntil == 0) {
+			return true;
+		}
+		if (System.currentTimeMillis() < mOpenUntil || mTrial) {
+			return false;
+		}
+		mTrial = true;
+		return true;
+	}
+
+	private synchronized boolean withdrawRetry() {
+		if (mOpenUntil != 0 || mTokens < 1) {
+			return false;
+		}
+		mTokens -= 1;
+		return true;
+	}
+
+	private synchronized void onSuccess(long latency) {
+		mFailures = 0;
+		mOpenUntil = 0;
+		mTrial = false;
+		mLatencies[mLatencyIndex] = latency;
+		mLatencyIndex = (mLatencyIndex + 1) % SAMPLES;
+		if (mLatencyCount < SAMPLES) {
+			mLatencyCount++;
+		}
+	}
+
+	private synchronized void onIgnored() {
+		mTrial = false;
+	}
+
+	private synchronized void onFailure() {
+		mTrial = false;
+		if (++mFailures >= mFailureThreshold) {
+			if (mOpenUntil == 0) {
+				System.err.println("Circuit opened for " + mName);
+			}
+			mOpenUntil = System.currentTimeMillis() + mOpenMillis;
+		}
+	}
+
+	private synchronized long hedgeDelay() {
+		int count = mLatencyCount;
+		if (count < 20) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(mLatencies, count);
+		Arrays.sort(sorted);
+		return Math.max(mMinHedgeDelay, sorted[Math.min(count - 1, count * mPercentile / 100)]);
+	}
+
+	private <T> T hedge(final Callable<T> call) throws Exception {
+		long delay = hedgeDelay();
+		if (delay < 0) {
+			return call.call();
+		}
+		final CompletableFuture<T> first;
+		try {
+			first = submit(call);
+		} catch (RejectedExecutionException e) {
+			return call.call();
+		}
+		try {
+			return first.get(delay, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+		final List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+		futures.add(first);
+		try {
+			futures.add(submit(call));
+		} catch (RejectedExecutionException e) {
+			// hedge pool is full, keep waiting for the first call
+		}
+		final CompletableFuture<T> any = new CompletableFuture<T>();
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+		for (CompletableFuture<T> future : futures) {
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable error) {
+					if (error == null) {
+						any.complete(result);
+					} else if (remaining.decrementAndGet() == 0) {
+						any.completeExceptionally(error);
+					}
+				}
+			});
+		}
+		try {
+			return any.get(mTimeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private <T> CompletableFuture<T> hedgeAsync(final Callable<CompletableFuture<T>> call) {
+		long delay = hedgeDelay();
+		if (delay < 0) {
+			return start(call);
+		}
+		final CompletableFuture<T> any = new CompletableFuture<T>();
+		final List<CompletableFuture<T>> futures = new ArrayList<CompletableFuture<T>>();
+		final AtomicInteger remaining = new AtomicInteger(1);
+		final BiConsumer<T, Throwable> listener = new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable error) {
+				if (error == null) {
+					any.complete(result);
+				} else if (remaining.decrementAndGet() == 0) {
+					any.completeExceptionally(error);
+				}
+			}
+		};
+		CompletableFuture<T> first = start(call);
+		futures.add(first);
+		first.whenComplete(listener);
+		final ScheduledFuture<?> timer = getTimer().schedule(new Runnable() {
+			public void run() {
+				CompletableFuture<T> second;
+				synchronized (futures) {
+					if (any.isDone()) {
+						return;
+					}
+					remaining.incrementAndGet();
+					futures.add(second = start(call));
+				}
+				second.whenComplete(listener);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		any.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T result, Throwable error) {
+				timer.cancel(false);
+				synchronized (futures) {
+					for (CompletableFuture<T> future : futures) {
+						future.cancel(false); // aborts the losing exchange
+					}
+				}
+			}
+		});
+		return any;
+	}
+
+	private static <T> CompletableFuture<T> start(Callable<CompletableFuture<T>> call) {
+		try {
+			return call.call();
+		} catch (Exception e) {
+			CompletableFuture<T> future = new CompletableFuture<T>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	private static <T> CompletableFuture<T> submit(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		getHedgeExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(call.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		});
+		return future;
+	}
+
+	private static Exception unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		return cause instanceof Exception ? (Exception) cause : e;
+	}
+
+	private static Exception unwrap(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t instanceof Exception ? (Exception) t : new ExecutionException(t);
+	}
+
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (sTimer == null) {
+			sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CircuitBreaker-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sTimer;
+	}
+
+	private static synchronized ExecutorService getHedgeExecutor() {
+		if (sHedgeExecutor == null) {
+			JSONObject config = CommonUtil.getConfig().optJSONObject("watson_config");
+			config = config != null ? config.optJSONObject("circuit_breaker") : null;
+			int threads = config != null ? config.optInt("hedge_threads", 64) : 64;
+			sHedgeExecutor = new ThreadPoolExecutor(0, threads, 60L, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "CircuitBreaker-hedge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sHedgeExecutor;
+	}
+
+	public static synchronized void shutdown() {
+		if (sHedgeExecutor != null) {
+			sHedgeExecutor.shutdown();
+			sHedgeExecutor = null;
+		}
+		if (sTimer != null) {
+			sTimer.shutdownNow();
+			sTimer = null;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+import hulop.cm.util.CommonUtil;
+import hulop.cm.util.Extra;
+import hulop.cm.util.Metrics;
+
+/*
+ * Measures and optionally shrinks the context sent to Watson.
+ *
+ * Configured by watson_config.context_compaction:
+ *   "enabled": apply drop / drop_empty / rename to the outgoing context
+ *   "drop": keys the dialog does not read
+ *   "drop_empty": drop top-level empty objects and arrays
+ *   "rename": { "long_key": "short_key" } for keys the dialog reads by the short name
+ *   "sample": account per-key sizes on every n-th request (0 = never)
+ *   "account_keys": keys accounted by name besides the injected info maps;
+ *                   any other key is accounted as "other"
+ */
+public class ContextCompactor {
+	private final boolean mEnabled, mDropEmpty;
+	private final Set<String> mDrop = new HashSet<String>();
+	private final Map<String, String> mRename = new HashMap<String, String>();
+	private final Set<String> mAccountKeys = new HashSet<String>(Arrays.asList(Extra.INFO_MAP_KEYS));
+	private final int mSample;
+	private final AtomicLong mCount = new AtomicLong();
+
+	public ContextCompactor(JSONObject config) {
+		boolean enabled = false, dropEmpty = false;
+		int sample = 10;
+		if (config != null) {
+			try {
+				enabled = config.optBoolean("enabled", false);
+				dropEmpty = config.optBoolean("drop_empty", false);
+				sample = config.optInt("sample", sample);
+				JSONArray drop = config.optJSONArray("drop");
+				if (drop != null) {
+					for (Object key : drop) {
+						mDrop.add((String) key);
+					}
+				}
+				JSONArray accountKeys = config.optJSONArray("account_keys");
+				if (accountKeys != null) {
+					for (Object key : accountKeys) {
+						mAccountKeys.add((String) key);
+					}
+				}
+				JSONObject rename = config.optJSONObject("rename");
+				if (rename != null) {
+					for (Iterator<String> it = rename.keys(); it.hasNext();) {
+						String key = it.next();
+						mRename.put(key, rename.getString(key));
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		mEnabled = enabled;
+		mDropEmpty = dropEmpty;
+		mSample = sample;
+	}
+
+	/*
+	 * Returns the context to serialize. The request context itself is left
+	 * untouched because the response handling still reads it.
+	 */
+	public JSONObject compact(JSONObject context) throws JSONException {
+		if (!mEnabled) {
+			return context;
+		}
+		JSONObject copy = (JSONObject) context.clone();
+		for (String key : mDrop) {
+			copy.remove(key);
+		}
+		if (mDropEmpty) {
+			for (Iterator<String> it = copy.keySet().iterator(); it.hasNext();) {
+				Object value = copy.get(it.next());
+				if ((value instanceof JSONObject && ((JSONObject) value).isEmpty())
+						|| (value instanceof JSONArray && ((JSONArray) value).isEmpty())) {
+					it.remove();
+				}
+			}
+		}
+		for (Map.Entry<String, String> entry : mRename.entrySet()) {
+			if (copy.has(entry.getKey())) {
+				copy.put(entry.getValue(), copy.remove(entry.getKey()));
+			}
+		}
+		return copy;
+	}
+
+	/*
+	 * Records sizes in UTF-8 bytes, the encoding the body is sent in. Nested
+	 * values are measured as JSON-P writes them, since json4j escapes
+	 * non-ASCII characters. Keys come from the client, so only known keys get
+	 * a histogram of their own.
+	 */
+	public void account(JSONObject context, String body) {
+		Metrics.histogram("context.body_bytes").record(utf8Length(body));
+		if (mSample <= 0 || mCount.incrementAndGet() % mSample != 0) {
+			return;
+		}
+		for (Iterator<String> it = context.keys(); it.hasNext();) {
+			String key = it.next();
+			Object value = context.opt(key);
+			int bytes;
+			if (value instanceof String) {
+				bytes = utf8Length((String) value) + 2;
+			} else if (value instanceof JSONObject || value instanceof JSONArray) {
+				bytes = utf8Length(CommonUtil.jsonString(value));
+			} else {
+				bytes = String.valueOf(value).length();
+			}
+			Metrics.histogram("context.key_bytes." + (mAccountKeys.contains(key) ? key : "other")).record(bytes);
+		}
+	}
+
+	static int utf8Length(String str) {
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length++; // encoded as '?'
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
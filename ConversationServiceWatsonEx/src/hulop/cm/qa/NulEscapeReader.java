@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * Drops escaped NUL characters from a JSON character stream, which the Watson
+ * response may contain and json4j cannot parse.
+ */
+class NulEscapeReader extends FilterReader {
+	private static final char[] ESCAPE = "\\u0000".toCharArray();
+
+	private final char[] buf = new char[8192];
+	private int pos, limit;
+	private boolean eof;
+
+	public NulEscapeReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		char[] c = new char[1];
+		return read(c, 0, 1) == -1 ? -1 : c[0];
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		int count = 0;
+		while (count < len) {
+			if (limit - pos < ESCAPE.length && !eof) {
+				fill();
+			}
+			if (pos >= limit) {
+				break;
+			}
+			if (buf[pos] == '\\' && isEscape()) {
+				pos += ESCAPE.length;
+				continue;
+			}
+			cbuf[off + count++] = buf[pos++];
+		}
+		return count == 0 && len > 0 ? -1 : count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		char[] skipBuf = new char[(int) Math.min(n, 1024)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(skipBuf, 0, (int) Math.min(n - skipped, skipBuf.length));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return pos < limit || in.ready();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private boolean isEscape() {
+		if (limit - pos < ESCAPE.length) {
+			return false;
+		}
+		for (int i = 1; i < ESCAPE.length; i++) {
+			if (buf[pos + i] != ESCAPE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void fill() throws IOException {
+		System.arraycopy(buf, pos, buf, 0, limit - pos);
+		limit -= pos;
+		pos = 0;
+		while (limit < buf.length) {
+			int read = in.read(buf, limit, buf.length - limit);
+			if (read == -1) {
+				eof = true;
+				break;
+			}
+			if (read == 0) {
+				break;
+			}
+			limit += read;
+			if (limit - pos >= ESCAPE.length) {
+				break;
+			}
+		}
+	}
+}
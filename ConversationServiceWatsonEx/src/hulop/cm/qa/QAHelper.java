@@ -22,51 +22,358 @@
 
 package hulop.cm.qa;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.fluent.Content;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.fluent.Response;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.protocol.HttpContext;
 import org.apache.wink.json4j.JSON;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 
+import hulop.cm.util.CommonUtil;
+
 public abstract class QAHelper {
-	private static final int TIMEOUT = 15 * 1000;
+	protected static final int TIMEOUT = 15 * 1000;
 	private static final String[] CLIENT_CONTEXT_KEYS = new String[] { "no_welcome", "latitude", "longitude", "floor", "building", "user_mode" };
 
+	private static final Map<Boolean, CloseableHttpClient> sClients = new HashMap<Boolean, CloseableHttpClient>();
+	private static final Map<Boolean, PoolingHttpClientConnectionManager> sConnManagers = new HashMap<Boolean, PoolingHttpClientConnectionManager>();
+	private static final Map<Boolean, CloseableHttpAsyncClient> sAsyncClients = new HashMap<Boolean, CloseableHttpAsyncClient>();
+	private static final Map<Boolean, PoolingNHttpClientConnectionManager> sAsyncConnManagers = new HashMap<Boolean, PoolingNHttpClientConnectionManager>();
+	private static ScheduledExecutorService sEvictor;
+	private static ExecutorService sCallbackExecutor;
+
 	public abstract JSONObject postMessage(String clientId, String text, JSONObject context) throws Exception;
 
+	/*
+	 * Sends the message without holding a thread for the round trip: the
+	 * returned future is completed from the HTTP client's callback.
+	 */
+	public abstract CompletableFuture<JSONObject> postMessageAsync(String clientId, String text, JSONObject context);
+
 	public QAHelper() {
 		super();
 	}
 
 	protected Object execute(boolean ignoreCert, String username, String password, Request request) throws Exception {
-		HttpClient httpClient = null;
-		if (ignoreCert) {
-			httpClient = HttpClients.custom().setHostnameVerifier(new AllowAllHostnameVerifier())
-					.setSslcontext(new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy() {
-						public boolean isTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-							return true;
-						}
-					}).build()).build();
-		}
-		Executor executor = Executor.newInstance(httpClient);
+		Executor executor = Executor.newInstance(getHttpClient(ignoreCert));
 		if (username != null) {
 			executor.auth(username, password);
 		}
 		Response response = executor.execute(request.connectTimeout(TIMEOUT).socketTimeout(TIMEOUT));
-		Content content = response.returnContent();
-		String strJSON = content.getType().getCharset() == null ? new String(content.asBytes(), "UTF-8")
-				: content.asString();
-		return JSON.parse(strJSON.replaceAll("\\\\u0000", ""));
+		return response.handleResponse(JSON_HANDLER);
+	}
+
+	protected CompletableFuture<Object> executeAsync(boolean ignoreCert, String username, String password, HttpUriRequest request) {
+		final CompletableFuture<Object> future = new CompletableFuture<Object>();
+		try {
+			HttpClientContext context = HttpClientContext.create();
+			if (username != null) {
+				CredentialsProvider credentials = new BasicCredentialsProvider();
+				credentials.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+				context.setCredentialsProvider(credentials);
+			}
+			final Future<HttpResponse> call = getHttpAsyncClient(ignoreCert).execute(request, context,
+					new FutureCallback<HttpResponse>() {
+						public void completed(final HttpResponse response) {
+							/*
+							 * The body is already buffered; parse it off the I/O
+							 * dispatch thread.
+							 */
+							try {
+								getCallbackExecutor().execute(new Runnable() {
+									public void run() {
+										try {
+											future.complete(JSON_HANDLER.handleResponse(response));
+										} catch (Throwable t) {
+											future.completeExceptionally(t);
+										}
+									}
+								});
+							} catch (RejectedExecutionException e) {
+								future.completeExceptionally(e);
+							}
+						}
+
+						public void failed(Exception ex) {
+							future.completeExceptionally(ex);
+						}
+
+						public void cancelled() {
+							future.cancel(false);
+						}
+					});
+			future.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object result, Throwable error) {
+					if (future.isCancelled()) {
+						call.cancel(true);
+					}
+				}
+			});
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/*
+	 * Parses the response entity as it streams in, dropping \u0000 escapes on
+	 * the way instead of copying the whole body into a string first.
+	 */
+	private static final ResponseHandler<Object> JSON_HANDLER = new ResponseHandler<Object>() {
+		public Object handleResponse(HttpResponse response) throws IOException {
+			StatusLine statusLine = response.getStatusLine();
+			HttpEntity entity = response.getEntity();
+			if (statusLine.getStatusCode() >= 300) {
+				throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+			}
+			if (entity == null) {
+				throw new IOException("No content");
+			}
+			Charset charset = ContentType.getOrDefault(entity).getCharset();
+			Reader reader = new BufferedReader(new NulEscapeReader(
+					new InputStreamReader(entity.getContent(), charset != null ? charset : Consts.UTF_8)));
+			try {
+				return JSON.parse(reader);
+			} catch (JSONException e) {
+				throw new IOException(e);
+			} finally {
+				reader.close();
+			}
+		}
+	};
+
+	/*
+	 * Shared pooled clients, one per trust mode. Connections are kept alive
+	 * between turns so that each message does not pay a new TCP + TLS handshake.
+	 */
+	protected static synchronized HttpClient getHttpClient(boolean ignoreCert) throws Exception {
+		CloseableHttpClient httpClient = sClients.get(ignoreCert);
+		if (httpClient == null) {
+			JSONObject config = getWatsonConfig();
+			SSLConnectionSocketFactory sslFactory = SSLConnectionSocketFactory.getSocketFactory();
+			if (ignoreCert) {
+				sslFactory = new SSLConnectionSocketFactory(getTrustAllContext(), new AllowAllHostnameVerifier());
+			}
+			PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(
+					RegistryBuilder.<ConnectionSocketFactory>create()
+							.register("http", PlainConnectionSocketFactory.getSocketFactory())
+							.register("https", sslFactory).build());
+			connManager.setMaxTotal(config.optInt("max_connections", 200));
+			connManager.setDefaultMaxPerRoute(config.optInt("max_connections_per_route", 100));
+			httpClient = HttpClients.custom().setConnectionManager(connManager)
+					.addInterceptorFirst(new HttpRequestInterceptor() {
+						/*
+						 * Fluent requests replace the client's default RequestConfig, so bound
+						 * the wait for a pooled connection here.
+						 */
+						public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+							HttpClientContext clientContext = HttpClientContext.adapt(context);
+							RequestConfig requestConfig = clientContext.getRequestConfig();
+							if (requestConfig.getConnectionRequestTimeout() <= 0) {
+								clientContext.setRequestConfig(RequestConfig.copy(requestConfig).setConnectionRequestTimeout(TIMEOUT).build());
+							}
+						}
+					})
+					.setKeepAliveStrategy(getKeepAliveStrategy(config)).build();
+			sConnManagers.put(ignoreCert, connManager);
+			sClients.put(ignoreCert, httpClient);
+			startEvictor(config);
+		}
+		return httpClient;
+	}
+
+	/*
+	 * Non-blocking counterparts of the clients above. A few I/O dispatch
+	 * threads multiplex every in-flight call, and the pool has the same limits.
+	 */
+	protected static synchronized HttpAsyncClient getHttpAsyncClient(boolean ignoreCert) throws Exception {
+		CloseableHttpAsyncClient httpClient = sAsyncClients.get(ignoreCert);
+		if (httpClient == null) {
+			JSONObject config = getWatsonConfig();
+			SchemeIOSessionStrategy sslStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+			if (ignoreCert) {
+				sslStrategy = new SSLIOSessionStrategy(getTrustAllContext(), SSLIOSessionStrategy.ALLOW_ALL_HOSTNAME_VERIFIER);
+			}
+			PoolingNHttpClientConnectionManager connManager = new PoolingNHttpClientConnectionManager(
+					new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT),
+					RegistryBuilder.<SchemeIOSessionStrategy>create()
+							.register("http", NoopIOSessionStrategy.INSTANCE)
+							.register("https", sslStrategy).build());
+			connManager.setMaxTotal(config.optInt("max_connections", 200));
+			connManager.setDefaultMaxPerRoute(config.optInt("max_connections_per_route", 100));
+			httpClient = HttpAsyncClients.custom().setConnectionManager(connManager)
+					.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(TIMEOUT).setSocketTimeout(TIMEOUT)
+							.setConnectionRequestTimeout(TIMEOUT).build())
+					.setKeepAliveStrategy(getKeepAliveStrategy(config)).build();
+			httpClient.start();
+			sAsyncConnManagers.put(ignoreCert, connManager);
+			sAsyncClients.put(ignoreCert, httpClient);
+			startEvictor(config);
+		}
+		return httpClient;
+	}
+
+	private static JSONObject getWatsonConfig() {
+		JSONObject config = CommonUtil.getConfig().optJSONObject("watson_config");
+		return config != null ? config : new JSONObject();
+	}
+
+	private static SSLContext getTrustAllContext() throws Exception {
+		return new SSLContextBuilder().loadTrustMaterial(null, new TrustStrategy() {
+			public boolean isTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				return true;
+			}
+		}).build();
+	}
+
+	private static ConnectionKeepAliveStrategy getKeepAliveStrategy(JSONObject config) throws JSONException {
+		final long keepAlive = config.optLong("keep_alive", 60) * 1000;
+		return new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				return duration > 0 && duration < keepAlive ? duration : keepAlive;
+			}
+		};
+	}
+
+	private static void startEvictor(JSONObject config) throws JSONException {
+		final long idleTimeout = config.optLong("idle_timeout", 30); // <= 0 keeps idle connections
+		if (sEvictor == null && idleTimeout > 0) {
+			sEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "QAHelper-evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			sEvictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					synchronized (QAHelper.class) {
+						for (PoolingHttpClientConnectionManager cm : sConnManagers.values()) {
+							cm.closeExpiredConnections();
+							cm.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+						}
+						for (PoolingNHttpClientConnectionManager cm : sAsyncConnManagers.values()) {
+							cm.closeExpiredConnections();
+							cm.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+						}
+					}
+				}
+			}, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+		}
+	}
+
+	/*
+	 * CPU work that follows an asynchronous call (parsing, building the reply,
+	 * session updates) runs here. Nothing on this pool waits for I/O, so one
+	 * thread per core is enough.
+	 */
+	public static synchronized ExecutorService getCallbackExecutor() {
+		if (sCallbackExecutor == null) {
+			sCallbackExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+					new ThreadFactory() {
+						private int count = 0;
+
+						public synchronized Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "QAHelper-callback-" + (++count));
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return sCallbackExecutor;
+	}
+
+	public static synchronized void shutdown() {
+		if (sEvictor != null) {
+			sEvictor.shutdownNow();
+			sEvictor = null;
+		}
+		CircuitBreaker.shutdown();
+		for (CloseableHttpClient httpClient : sClients.values()) {
+			try {
+				httpClient.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		for (CloseableHttpAsyncClient httpClient : sAsyncClients.values()) {
+			try {
+				httpClient.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		sClients.clear();
+		sConnManagers.clear();
+		sAsyncClients.clear();
+		sAsyncConnManagers.clear();
+		if (sCallbackExecutor != null) {
+			sCallbackExecutor.shutdown();
+			sCallbackExecutor = null;
+		}
 	}
 
 	protected void addClientContext(JSONObject clientContext, JSONObject requestContext) {
@@ -90,4 +397,4 @@ public abstract class QAHelper {
 			responseContext.remove(key);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/*
+ * Watson output text split once into literal segments and the @@name##
+ * placeholders that the old "@@(.*?)##" pattern found: the first ## after
+ * each @@, with no line terminator in between. Rendering replaces every run
+ * of three or more dots, as "(\\.{3,})" did, in the literals and in the
+ * placeholder values that used to go through that replacement.
+ */
+class ResponseTemplate {
+	private final String[] literals;
+	private final String[] names;
+	private final int length;
+
+	ResponseTemplate(String text) {
+		List<String> literals = new ArrayList<String>(), names = new ArrayList<String>();
+		int copied = 0, from = 0, start;
+		while ((start = text.indexOf("@@", from)) >= 0) {
+			int end = text.indexOf("##", start + 2);
+			if (end < 0) {
+				break;
+			}
+			int terminator = lastTerminator(text, start + 2, end);
+			if (terminator >= 0) {
+				/* no @@ before the terminator can reach a ## either */
+				from = terminator + 1;
+				continue;
+			}
+			literals.add(text.substring(copied, start));
+			names.add(text.substring(start + 2, end));
+			copied = from = end + 2;
+		}
+		literals.add(text.substring(copied));
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.names = names.toArray(new String[names.size()]);
+		this.length = text.length();
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	String getName(int index) {
+		return names[index];
+	}
+
+	/*
+	 * Renders { text, pron } in one pass each. Placeholders with an info map
+	 * entry in infos become the name (pron: its pron), the rest are left to
+	 * translation_map, or kept as they are without one.
+	 */
+	String[] render(JSONObject[] infos, JSONObject translation_map, String pronEllipsis) throws JSONException {
+		String[] texts = new String[names.length], prons = new String[names.length];
+		boolean[] ellipsis = new boolean[names.length];
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			if (infos[i] != null) {
+				texts[i] = name;
+				prons[i] = infos[i].has("pron") ? infos[i].getString("pron") : name;
+				ellipsis[i] = true;
+			} else if (translation_map != null) {
+				JSONObject translation = translation_map.optJSONObject(name);
+				texts[i] = name;
+				prons[i] = translation != null && translation.has("pron") ? translation.getString("pron") : name;
+			} else {
+				texts[i] = prons[i] = "@@" + name + "##";
+				ellipsis[i] = true;
+			}
+		}
+		return new String[] { render(texts, ellipsis, ""), render(prons, ellipsis, pronEllipsis) };
+	}
+
+	/*
+	 * Whether a placeholder was left to translation_map.
+	 */
+	boolean isTranslated(JSONObject[] infos) {
+		for (int i = 0; i < names.length; i++) {
+			if (infos[i] == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * values[i] is rendered for placeholder i, and takes part in the dot runs
+	 * if ellipsis[i] is set.
+	 */
+	private String render(String[] values, boolean[] ellipsis, String replacement) {
+		StringBuilder sb = new StringBuilder(length + 16);
+		int dots = 0;
+		for (int i = 0; i < literals.length; i++) {
+			dots = append(sb, literals[i], dots, replacement);
+			if (i < names.length) {
+				if (ellipsis[i]) {
+					dots = append(sb, values[i], dots, replacement);
+				} else {
+					dots = flush(sb, dots, replacement);
+					sb.append(values[i]);
+				}
+			}
+		}
+		flush(sb, dots, replacement);
+		return sb.toString();
+	}
+
+	private static int append(StringBuilder sb, String s, int dots, String replacement) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '.') {
+				dots++;
+			} else {
+				dots = flush(sb, dots, replacement);
+				sb.append(c);
+			}
+		}
+		return dots;
+	}
+
+	private static int flush(StringBuilder sb, int dots, String replacement) {
+		if (dots >= 3) {
+			sb.append(replacement);
+		} else {
+			for (int i = 0; i < dots; i++) {
+				sb.append('.');
+			}
+		}
+		return 0;
+	}
+
+	private static int lastTerminator(String text, int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			switch (text.charAt(i)) {
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				return i;
+			}
+		}
+		return -1;
+	}
+}
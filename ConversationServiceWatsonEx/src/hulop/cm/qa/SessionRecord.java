@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.wink.json4j.JSON;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+import hulop.cm.util.SessionStore;
+
+/*
+ * Conversation state kept for one client.
+ *
+ * Only the Watson context is kept as a live object, because it is needed to
+ * build the next turn. The last result sent to the client is kept as gzipped
+ * JSON and inflated only when the client asks to repeat it. The context is
+ * stored as a private copy whose keys and short string values are shared
+ * between sessions.
+ */
+public class SessionRecord {
+	private static final int INTERN_LENGTH = 32;
+	private static final int INTERN_LIMIT = 100000;
+	private static final int ENTRY_OVERHEAD = 48;
+	private static final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<String, String>();
+
+	private String lang;
+	private JSONObject context;
+	private byte[] response;
+	private long lastPost;
+	private int errorCount;
+	private long contextBytes;
+
+	/*
+	 * Returns a copy, since the stored map is serialized and merged under
+	 * this record's lock.
+	 */
+	public synchronized JSONObject getContext(String lang) {
+		return lang.equals(this.lang) && context != null ? (JSONObject) context.clone() : null;
+	}
+
+	public synchronized boolean mergeContext(String lang, JSONObject clientContext) throws JSONException {
+		if (!lang.equals(this.lang) || context == null) {
+			return false;
+		}
+		JSONObject merged = (JSONObject) context.clone();
+		for (Iterator<String> it = clientContext.keys(); it.hasNext();) {
+			String key = it.next();
+			merged.put(key, clientContext.get(key));
+		}
+		setContext(lang, merged);
+		return true;
+	}
+
+	public synchronized void setContext(String lang, JSONObject context) {
+		this.lang = lang;
+		this.context = null;
+		contextBytes = 0;
+		if (context != null) {
+			try {
+				long[] bytes = new long[1];
+				this.context = (JSONObject) compact(context, bytes);
+				contextBytes = bytes[0];
+			} catch (JSONException e) {
+				e.printStackTrace();
+				this.context = context;
+			}
+		}
+	}
+
+	public synchronized long getLastPost() {
+		return lastPost;
+	}
+
+	public synchronized long setLastPost(long lastPost) {
+		long last = this.lastPost;
+		this.lastPost = lastPost;
+		return last;
+	}
+
+	public synchronized int getErrorCount() {
+		return errorCount;
+	}
+
+	public synchronized JSONObject getResponse() {
+		try {
+			return response != null ? gunzip(response) : null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public synchronized void setResponse(JSONObject result, int errorCount) {
+		this.errorCount = errorCount;
+		try {
+			response = gzip(result);
+		} catch (Exception e) {
+			e.printStackTrace();
+			response = null;
+		}
+	}
+
+	/*
+	 * json4j writes non-ASCII text as escape sequences, so stored JSON is
+	 * gzipped to keep Japanese text compact.
+	 */
+	private static byte[] gzip(JSONObject obj) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(baos), StandardCharsets.UTF_8)) {
+			obj.write(writer);
+		}
+		return baos.toByteArray();
+	}
+
+	private static JSONObject gunzip(byte[] data) throws Exception {
+		try (Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data)),
+				StandardCharsets.UTF_8)) {
+			return (JSONObject) JSON.parse(reader);
+		}
+	}
+
+	/*
+	 * Estimated heap footprint in bytes.
+	 */
+	public synchronized long getBytes() {
+		return ENTRY_OVERHEAD + contextBytes + (response != null ? response.length + 16 : 0);
+	}
+
+	/*
+	 * Copies the tree with keys and short string values replaced by shared
+	 * instances, adding its approximate size to bytes[0]. The source is not
+	 * modified since parts of it may be shared with the info map.
+	 */
+	private static Object compact(Object obj, long[] bytes) throws JSONException {
+		bytes[0] += ENTRY_OVERHEAD;
+		if (obj instanceof JSONObject) {
+			JSONObject map = (JSONObject) obj;
+			JSONObject copy = new JSONObject();
+			for (Map.Entry<String, Object> entry : new ArrayList<Map.Entry<String, Object>>(map.entrySet())) {
+				copy.put(intern(entry.getKey()), compact(entry.getValue(), bytes));
+			}
+			return copy;
+		} else if (obj instanceof JSONArray) {
+			JSONArray array = (JSONArray) obj;
+			JSONArray copy = new JSONArray(array.size());
+			for (Object value : array) {
+				copy.add(compact(value, bytes));
+			}
+			return copy;
+		} else if (obj instanceof String) {
+			bytes[0] += ((String) obj).length() * 2;
+			return intern((String) obj);
+		}
+		return obj;
+	}
+
+	private static String intern(String str) {
+		if (str.length() > INTERN_LENGTH) {
+			return str;
+		}
+		String shared = interned.get(str);
+		if (shared == null) {
+			if (interned.size() >= INTERN_LIMIT) {
+				return str;
+			}
+			shared = interned.putIfAbsent(str, str);
+			if (shared == null) {
+				shared = str;
+			}
+		}
+		return shared;
+	}
+
+	public static final SessionStore.Weigher<SessionRecord> WEIGHER = new SessionStore.Weigher<SessionRecord>() {
+		public long weigh(SessionRecord value) {
+			return value.getBytes();
+		}
+	};
+
+	public static final SessionStore.Codec<SessionRecord> CODEC = new SessionStore.Codec<SessionRecord>() {
+		public byte[] encode(SessionRecord value) throws Exception {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+			synchronized (value) {
+				dos.writeUTF(value.lang != null ? value.lang : "");
+				dos.writeLong(value.lastPost);
+				dos.writeInt(value.errorCount);
+				writeBytes(dos, value.context != null ? gzip(value.context) : null);
+				writeBytes(dos, value.response);
+			}
+			dos.flush();
+			return baos.toByteArray();
+		}
+
+		public SessionRecord decode(byte[] data) throws Exception {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+			SessionRecord value = new SessionRecord();
+			String lang = dis.readUTF();
+			value.lastPost = dis.readLong();
+			value.errorCount = dis.readInt();
+			byte[] context = readBytes(dis);
+			if (context != null) {
+				value.setContext(lang, gunzip(context));
+			} else {
+				value.lang = lang;
+			}
+			value.response = readBytes(dis);
+			return value;
+		}
+
+		private void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+			if (bytes == null) {
+				dos.writeInt(-1);
+			} else {
+				dos.writeInt(bytes.length);
+				dos.write(bytes);
+			}
+		}
+
+		private byte[] readBytes(DataInputStream dis) throws IOException {
+			int length = dis.readInt();
+			if (length < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			dis.readFully(bytes);
+			return bytes;
+		}
+	};
+}
@@ -25,31 +25,46 @@ package hulop.cm.qa;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 import org.apache.http.client.fluent.Request;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NStringEntity;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 
 import hulop.cm.util.CommonUtil;
 import hulop.cm.util.Extra;
+import hulop.cm.util.PhraseReplacer;
+import hulop.cm.util.SessionStore;
 
 public class WatsonHelper extends QAHelper {
 	private final String mLang;
-	private JSONObject mLastResultMap = new JSONObject();
-	private Map<String, Long> mLastPostMap = new HashMap<String, Long>();
 
 	private String mEndpoint, mUsername, mPassword, mWorkspace;
-	private boolean mIgnoreCert;
+	private boolean mIgnoreCert, mWelcomeCache;
+	private JSONObject mWelcomeContext;
+	private long mWelcomeVersion, mWelcomeTime, mWelcomeTTL = 300 * 1000;
+	private CircuitBreaker mBreaker;
+	private ContextCompactor mCompactor;
+	private JSONObject mTranslationMap;
+	private PhraseReplacer mTranslator;
 
 	private static final Map<String, WatsonHelper> instances = new HashMap<String, WatsonHelper>();
 	private static final Extra extra = new Extra();
+	private static final SessionStore<SessionRecord> sessions = new SessionStore<SessionRecord>("sessions",
+			SessionRecord.WEIGHER, SessionRecord.CODEC);
+	private static final String[] WELCOME_EXCLUDE_KEYS = new String[] { "conversation_id", "output_pron", "navi",
+			"dest_info", "candidates_info", "error_count" };
 
-	public static WatsonHelper getInstance(String lang) {
+	public static synchronized WatsonHelper getInstance(String lang) {
 		WatsonHelper instance = instances.get(lang);
 		if (instance == null) {
 			instances.put(lang, instance = new WatsonHelper(lang));
@@ -70,36 +85,176 @@ public class WatsonHelper extends QAHelper {
 			mPassword = config.getString("password");
 			mWorkspace = config.getString("workspace_" + lang);
 			mIgnoreCert = config.getBoolean("ignoreCert");
+			mWelcomeCache = config.optBoolean("welcome_cache", true);
+			mWelcomeTTL = config.optLong("welcome_cache_seconds", mWelcomeTTL / 1000) * 1000;
+			mCompactor = new ContextCompactor(config.optJSONObject("context_compaction"));
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
+		if (mCompactor == null) {
+			mCompactor = new ContextCompactor(null);
+		}
+		mBreaker = CircuitBreaker.getInstance(mWorkspace != null ? mWorkspace : lang, TIMEOUT);
 	}
 
 	@Override
 	public JSONObject postMessage(String clientId, String text, JSONObject clientContext) throws Exception {
+		boolean hasText = text != null && text.length() > 0;
+		JSONObject lastContext = hasText ? getLastContext(clientId) : null;
+		if (hasText && lastContext == null) {
+			lastContext = getWelcomeContext();
+			if (lastContext != null) {
+				getSession(clientId).setLastPost(System.currentTimeMillis());
+			} else {
+				postMessage(clientId, null, null);
+				lastContext = getLastContext(clientId);
+			}
+		}
+		final Turn turn = prepare(clientId, text, clientContext, lastContext);
+		if (turn.body == null) {
+			return turn.requestBody;
+		}
+		JSONObject response = mBreaker.execute(new Callable<JSONObject>() {
+			public JSONObject call() throws Exception {
+				Request request = Request.Post(turn.uri).bodyString(turn.body, ContentType.APPLICATION_JSON);
+				return (JSONObject) execute(mIgnoreCert, mUsername, mPassword, request);
+			}
+		});
+		return finish(clientId, turn, response);
+	}
+
+	/*
+	 * Same turn as postMessage. A missing welcome context is fetched by
+	 * chaining the welcome turn in front of this one.
+	 */
+	@Override
+	public CompletableFuture<JSONObject> postMessageAsync(final String clientId, final String text,
+			final JSONObject clientContext) {
+		boolean hasText = text != null && text.length() > 0;
+		JSONObject lastContext = hasText ? getLastContext(clientId) : null;
+		if (hasText && lastContext == null) {
+			lastContext = getWelcomeContext();
+			if (lastContext != null) {
+				getSession(clientId).setLastPost(System.currentTimeMillis());
+			} else {
+				final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+				final CompletableFuture<JSONObject> welcome = postMessageAsync(clientId, null, null);
+				cancelWith(result, welcome);
+				welcome.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+					public void accept(JSONObject response, Throwable error) {
+						if (error != null) {
+							result.completeExceptionally(error);
+						} else if (!result.isDone()) {
+							relay(send(clientId, text, clientContext, getLastContext(clientId)), result);
+						}
+					}
+				});
+				return result;
+			}
+		}
+		return send(clientId, text, clientContext, lastContext);
+	}
+
+	private CompletableFuture<JSONObject> send(final String clientId, String text, JSONObject clientContext,
+			JSONObject lastContext) {
+		final CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+		final Turn turn;
+		try {
+			turn = prepare(clientId, text, clientContext, lastContext);
+		} catch (Exception e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		if (turn.body == null) {
+			result.complete(turn.requestBody);
+			return result;
+		}
+		final CompletableFuture<Object> call = mBreaker.executeAsync(new Callable<CompletableFuture<Object>>() {
+			public CompletableFuture<Object> call() throws Exception {
+				HttpPost request = new HttpPost(turn.uri);
+				request.setEntity(new NStringEntity(turn.body, ContentType.APPLICATION_JSON));
+				return executeAsync(mIgnoreCert, mUsername, mPassword, request);
+			}
+		});
+		cancelWith(result, call);
+		call.whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(final Object response, final Throwable error) {
+				try {
+					getCallbackExecutor().execute(new Runnable() {
+						public void run() {
+							if (result.isDone()) {
+								return; // cancelled, so the session is left as it was
+							}
+							if (error != null) {
+								result.completeExceptionally(error);
+							} else {
+								result.complete(finish(clientId, turn, (JSONObject) response));
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	private static <T> void cancelWith(final CompletableFuture<T> result, final CompletableFuture<?> source) {
+		result.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				if (result.isCancelled()) {
+					source.cancel(false);
+				}
+			}
+		});
+	}
+
+	private static <T> void relay(final CompletableFuture<T> source, final CompletableFuture<T> result) {
+		cancelWith(result, source);
+		source.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T value, Throwable error) {
+				if (error != null) {
+					result.completeExceptionally(error);
+				} else {
+					result.complete(value);
+				}
+			}
+		});
+	}
+
+	/*
+	 * One message turn: the request built from the session, and the body sent
+	 * to Watson. body is null for $CONTEXT_DEBUG$, which is answered locally.
+	 */
+	private static class Turn {
+		JSONObject requestBody, requestContext;
+		String text, body;
+		URI uri;
+		long infoVersion;
+		boolean welcome;
+	}
+
+	private Turn prepare(String clientId, String text, JSONObject clientContext, JSONObject lastContext)
+			throws Exception {
+		Turn turn = new Turn();
 		JSONObject input = new JSONObject();
 		if (text != null) {
 			input.put("text", text);
 		}
 		JSONObject requestBody = new JSONObject();
 		boolean hasText = text != null && text.length() > 0;
-		if (hasText && !mLastResultMap.has(clientId)) {
-			postMessage(clientId, null, null);
-		}
-		if (mLastResultMap.has(clientId)) {
-			JSONObject lastResult = mLastResultMap.getJSONObject(clientId);
-			if (hasText && lastResult.has("context")) {
-				try {
-					JSONObject context = lastResult.getJSONObject("context");
-					JSONObject copy = (JSONObject) context.clone();
-					// context.remove("dest_info");
-					// context.remove("candidates_info");
-					copy.remove("output_pron");
-					copy.remove("navi");
-					requestBody.put("context", copy);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+		boolean welcome = !hasText && clientContext == null;
+		if (lastContext != null) {
+			try {
+				JSONObject copy = (JSONObject) lastContext.clone();
+				// context.remove("dest_info");
+				// context.remove("candidates_info");
+				copy.remove("output_pron");
+				copy.remove("navi");
+				requestBody.put("context", copy);
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
 		}
 		JSONObject requestContext = requestBody.optJSONObject("context");
@@ -107,9 +262,10 @@ public class WatsonHelper extends QAHelper {
 			requestBody.put("context", requestContext = new JSONObject());
 		}
 		long now = System.currentTimeMillis();
-		Long lastWelcome = mLastPostMap.put(clientId, now);
-		if (lastWelcome != null) {
-			requestContext.put("elapsed_time", now - lastWelcome.longValue());
+		long infoVersion = extra.getVersion(mLang);
+		long lastWelcome = getSession(clientId).setLastPost(now);
+		if (lastWelcome != 0) {
+			requestContext.put("elapsed_time", now - lastWelcome);
 		}
 		requestBody.put("alternate_intents", true);
 		requestBody.put("input", input);
@@ -119,15 +275,31 @@ public class WatsonHelper extends QAHelper {
 		System.out.println("---- start of request ----\n" + requestBody.toString(4) + "\n---- end ----");
 
 		extra.putInfoMap(requestContext, mLang);
+		if (infoVersion != extra.getVersion(mLang)) {
+			welcome = false;
+		}
+		turn.text = text;
+		turn.requestBody = requestBody;
+		turn.requestContext = requestContext;
+		turn.infoVersion = infoVersion;
+		turn.welcome = welcome;
 		if ("$CONTEXT_DEBUG$".equals(text)) {
-			return requestBody;
+			requestContext.put("info_map", extra.getInfoMap(requestContext, mLang));
+			return turn;
 		}
 //		Request request = Request.Post(new URI(api)).bodyString(requestBody.toString(), ContentType.APPLICATION_JSON);
-		Object info_map = requestContext.remove("info_map"); // issue #1443
-		Request request = Request.Post(new URI(api)).bodyString(CommonUtil.jsonString(requestBody), ContentType.APPLICATION_JSON); // issue #1443
-		requestContext.put("info_map", info_map); // issue #1443
+		turn.uri = new URI(api);
+		JSONObject sendContext = mCompactor.compact(requestContext);
+		requestBody.put("context", sendContext);
+		turn.body = CommonUtil.jsonString(requestBody); // issue #1443
+		mCompactor.account(sendContext, turn.body);
+		requestBody.put("context", requestContext);
+		return turn;
+	}
 
-		JSONObject response = (JSONObject) execute(mIgnoreCert, mUsername, mPassword, request);
+	private JSONObject finish(String clientId, Turn turn, JSONObject response) {
+		String text = turn.text;
+		JSONObject requestContext = turn.requestContext;
 		JSONObject responseContext = response.optJSONObject("context");
 		if (responseContext != null) {
 			try {
@@ -167,83 +339,201 @@ public class WatsonHelper extends QAHelper {
 				e.printStackTrace();
 			}
 		}
+		if (turn.welcome && responseContext != null) {
+			try {
+				setWelcomeContext(turn.infoVersion, responseContext);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 		setLastResult(clientId, response);
 		return response;
 	}
 
-	public JSONObject getLastResult(String clientId) {
-		if (mLastResultMap.has(clientId)) {
-			try {
-				return mLastResultMap.getJSONObject(clientId);
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+	/*
+	 * The context returned by a plain welcome turn (no text, no client
+	 * context) is the same for every client of a workspace while the info map
+	 * does not change, so a client's first utterance can start from a cached
+	 * copy instead of waiting for its own welcome round trip. The copy also
+	 * expires after welcome_cache_seconds so that an updated workspace dialog
+	 * is picked up.
+	 */
+	private synchronized JSONObject getWelcomeContext() {
+		if (mWelcomeContext != null && mWelcomeVersion == extra.getVersion(mLang)
+				&& System.currentTimeMillis() - mWelcomeTime < mWelcomeTTL) {
+			return mWelcomeContext;
 		}
 		return null;
 	}
 
+	private synchronized void setWelcomeContext(long version, JSONObject context) throws JSONException {
+		if (!mWelcomeCache || version != extra.getVersion(mLang)) {
+			return;
+		}
+		JSONObject copy = new JSONObject(context.toString()); // deep clone
+		for (String key : WELCOME_EXCLUDE_KEYS) {
+			copy.remove(key);
+		}
+		mWelcomeContext = copy;
+		mWelcomeVersion = version;
+		mWelcomeTime = System.currentTimeMillis();
+	}
+
+	public JSONObject getLastContext(String clientId) {
+		SessionRecord session = sessions.get(clientId);
+		return session != null ? session.getContext(mLang) : null;
+	}
+
+	public void mergeContext(String clientId, JSONObject clientContext) throws JSONException {
+		SessionRecord session = sessions.get(clientId);
+		if (session != null && session.mergeContext(mLang, clientContext)) {
+			sessions.put(clientId, session);
+		}
+	}
+
 	public void setLastResult(String clientId, JSONObject result) {
-		try {
-			mLastResultMap.put(clientId, result);
-		} catch (JSONException e) {
-			e.printStackTrace();
+		JSONObject context = result.optJSONObject("context");
+		if (context != null && context.optBoolean("finish", false)) {
+			sessions.finish(clientId);
+		} else {
+			setLastContext(clientId, context);
+		}
+	}
+
+	private void setLastContext(String clientId, JSONObject context) {
+		SessionRecord session = getSession(clientId);
+		session.setContext(mLang, context);
+		sessions.put(clientId, session);
+	}
+
+	public static JSONObject getLastResponse(String clientId) {
+		SessionRecord session = sessions.get(clientId);
+		return session != null ? session.getResponse() : null;
+	}
+
+	public static int getErrorCount(String clientId) {
+		SessionRecord session = sessions.get(clientId);
+		return session != null ? session.getErrorCount() : 0;
+	}
+
+	public static void setLastResponse(String clientId, JSONObject result, int errorCount) {
+		JSONObject context = result.optJSONObject("context");
+		if (context != null && context.optBoolean("finish", false)) {
+			sessions.finish(clientId);
+		} else {
+			SessionRecord session = getSession(clientId);
+			session.setResponse(result, errorCount);
+			sessions.put(clientId, session);
+		}
+	}
+
+	private static SessionRecord getSession(String clientId) {
+		synchronized (sessions) {
+			SessionRecord session = sessions.get(clientId);
+			if (session == null) {
+				sessions.put(clientId, session = new SessionRecord());
+			}
+			return session;
+		}
+	}
+
+	/*
+	 * The pron fallback applies translation_map as ordered replaces, compiled
+	 * once for as long as the same map keeps coming.
+	 */
+	private synchronized PhraseReplacer getTranslator(JSONObject translation_map) throws JSONException {
+		if (mTranslator == null || !translation_map.equals(mTranslationMap)) {
+			JSONArray rules = new JSONArray();
+			for (Iterator<String> it = translation_map.keys(); it.hasNext();) {
+				String name = it.next();
+				try {
+					String p = translation_map.getJSONObject(name).optString("pron");
+					if (p != null) {
+						JSONArray rule = new JSONArray();
+						rule.add(name);
+						rule.add(p);
+						rules.add(rule);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			mTranslator = new PhraseReplacer(rules);
+			mTranslationMap = new JSONObject(translation_map.toString()); // deep clone
 		}
+		return mTranslator;
 	}
 
 	private class ResponseHandler {
 		private final JSONObject response;
-		private String text, pron;
-		private JSONObject conversion_map, translation_map;
+		private final ResponseTemplate template;
+		private final JSONObject[] infos;
+		private final Map<String, String> pronNames = new LinkedHashMap<String, String>();
+		private JSONObject translation_map;
+		private final JSONObject requestContext;
+		private final boolean hasInfoMap;
 		private boolean converted = false;
 
 		public ResponseHandler(JSONObject response, JSONObject requestContext) throws JSONException {
 			JSONArray array = response.getJSONObject("output").getJSONArray("text");
-			String join = array.join("\n");
+			this.template = new ResponseTemplate(array.join("\n"));
 			this.response = response;
-			this.conversion_map = requestContext.optJSONObject("info_map");
+			this.requestContext = requestContext;
+			this.hasInfoMap = extra.hasInfoMap(requestContext, mLang);
 			this.translation_map = response.getJSONObject("context").optJSONObject("translation_map");
 			if (translation_map == null) {
 				translation_map = extra.createTranslationMap(mLang);
 			}
 			System.out.println("translation_map: " + translation_map);
-			this.text = convert(join, false).replaceAll("(\\.{3,})", "");
-			this.pron = convert(join, true).replaceAll("(\\.{3,})", "ja".equals(mLang) ? "。\n\n" : "\n\n");
+			infos = new JSONObject[template.size()];
+			if (hasInfoMap) {
+				for (int i = 0; i < infos.length; i++) {
+					if ((infos[i] = extra.getInfo(requestContext, mLang, template.getName(i))) != null) {
+						converted = true;
+					}
+				}
+			}
 		}
 
+		/*
+		 * Without any translated placeholder, the pron gets every
+		 * translation_map name replaced by its pron.
+		 */
 		public void save() throws JSONException {
-			text = translate(text, false);
-			pron = translate(pron, true);
+			String[] output = template.render(infos, translation_map, "ja".equals(mLang) ? "。\n\n" : "\n\n");
+			String text = output[0], pron = output[1];
+			for (Map.Entry<String, String> entry : pronNames.entrySet()) {
+				pron = pron.replace(entry.getKey(), entry.getValue());
+			}
+			if (translation_map != null && !template.isTranslated(infos)) {
+				pron = getTranslator(translation_map).replace(pron);
+			}
 			response.getJSONObject("output").put("text", new JSONArray(text.split("\n")));
 			response.getJSONObject("context").put("output_pron", pron);
 		}
 
 		public JSONObject getInfo(String name) throws JSONException {
-			JSONObject info = conversion_map != null ? conversion_map.optJSONObject(name) : null;
+			JSONObject info = extra.getInfo(requestContext, mLang, name);
 			if (info != null) {
-				if (!info.has("name")) {
-					info = ((JSONObject)info.clone()).put("name", name);
-				}
 				if (!converted && info.has("pron") && "ja".equals(mLang)) {
-					pron = pron.replace(name, info.getString("pron"));
+					pronNames.put(name, info.getString("pron"));
 				}
 			}
 			return info;
 		}
 
 		public JSONObject getCategoryInfo(String category_name, JSONObject category_map) throws JSONException {
-			if (conversion_map != null && category_map != null) {
+			if (hasInfoMap && category_map != null) {
 				JSONArray names = category_map.optJSONArray(category_name);
 				if (names != null) {
 					String nodes = "";
 					for (Object name : names) {
-						try {
-							String node = conversion_map.getJSONObject((String) name).getString("nodes");
+						JSONObject info = extra.getInfo(requestContext, mLang, (String) name);
+						if (info != null) {
 							if (nodes.length() > 0) {
 								nodes += "|";
 							}
-							nodes += node;
-						} catch (Exception e) {
-							e.printStackTrace();
+							nodes += info.getString("nodes");
 						}
 					}
 					return new JSONObject().put("name", category_name).put("pron", category_name).put("nodes", nodes);
@@ -251,69 +541,5 @@ public class WatsonHelper extends QAHelper {
 			}
 			return null;
 		}
-
-		private String convert(String before, boolean pron) {
-			if (conversion_map == null) {
-				return before;
-			}
-			StringBuffer sb = new StringBuffer();
-			Matcher m = PAT_NAME.matcher(before);
-			while (m.find()) {
-				String name = m.group(1);
-				JSONObject info = conversion_map.optJSONObject(name);
-				if (info == null) {
-					name = m.group(0);
-				} else {
-					if (pron) {
-						try {
-							name = info.getString("pron");
-						} catch (Exception e) {
-						}
-					}
-					converted = true;
-				}
-				m.appendReplacement(sb, name);
-			}
-			m.appendTail(sb);
-			return sb.toString();
-		}
-
-		private String translate(String before, boolean pron) {
-			if (translation_map == null) {
-				return before;
-			}
-			boolean translated = false;
-			StringBuffer sb = new StringBuffer();
-			Matcher m = PAT_NAME.matcher(before);
-			while (m.find()) {
-				String name = m.group(1);
-				if (pron) {
-					try {
-						name = translation_map.getJSONObject(name).getString("pron");
-					} catch (Exception e) {
-					}
-				}
-				translated = true;
-				m.appendReplacement(sb, name);
-			}
-			m.appendTail(sb);
-			if (translated || !pron) {
-				return sb.toString();
-			}
-			String after = before;
-			for (Iterator<String> it = translation_map.keys(); it.hasNext();) {
-				String name = it.next();
-				try {
-					String p = translation_map.getJSONObject(name).optString("pron");
-					if (p != null) {
-						after = after.replace(name, p);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-			}
-			return after;
-		}
 	}
-	static final Pattern PAT_NAME = Pattern.compile("@@(.*?)##");
 }
@@ -40,7 +40,7 @@ import hulop.cm.util.CommonUtil;
 /**
  * Servlet Filter implementation class AuthenticationFilter
  */
-@WebFilter("/*")
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
 public class AuthenticationFilter implements Filter {
 
 	static String API_KEY;
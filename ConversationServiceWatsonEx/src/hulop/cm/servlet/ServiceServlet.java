@@ -23,8 +23,14 @@
 package hulop.cm.servlet;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -35,27 +41,37 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 
+import hulop.cm.qa.QAHelper;
 import hulop.cm.qa.WatsonHelper;
 import hulop.cm.util.CommonUtil;
+import hulop.cm.util.Extra;
 import hulop.cm.util.LogHelper;
+import hulop.cm.util.RemoteConfig;
+import hulop.cm.util.SessionStore;
 import hulop.cm.util.TextFilter;
 
 /**
  * Servlet implementation class ServiceServlet
  */
-@WebServlet("/service")
+@WebServlet(urlPatterns = "/service", asyncSupported = true)
 public class ServiceServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+	private static final long ASYNC_TIMEOUT = 60 * 1000;
 
 	private TextFilter textFilter = new TextFilter();
 	private LogHelper logHelper = new LogHelper();
-	private JSONObject mLastResultMap = new JSONObject();
+	private boolean mAsync;
 
 	/**
 	 * @see HttpServlet#HttpServlet()
 	 */
 	public ServiceServlet() {
 		super();
+		try {
+			mAsync = CommonUtil.getConfig().getJSONObject("watson_config").optBoolean("async", false);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
@@ -81,60 +97,96 @@ public class ServiceServlet extends HttpServlet {
 		}
 		final String clientId = id != null ? id : request.getSession(true).getId();
 		final String text = textFilter.preprocess(request.getParameter("text"));
-		if (textFilter.hasRepeatWord(text) && mLastResultMap.containsKey(clientId)) {
-			try {
-				CommonUtil.sendJSON(mLastResultMap.get(clientId), response);
-				return;
-			} catch (JSONException e) {
-				e.printStackTrace();
-			}
+		JSONObject repeatResult = textFilter.hasRepeatWord(text) ? WatsonHelper.getLastResponse(clientId) : null;
+		if (repeatResult != null) {
+			CommonUtil.sendJSON(repeatResult, response);
+			return;
 		}
 		final Object bodyObj = CommonUtil.getJSON(request);
 		if (bodyObj != null) {
 			System.out.println(bodyObj);
 		}
 		System.out.println(text);
-		WatsonHelper watHelper = WatsonHelper.getInstance(lang);
-		JSONObject result = null;
+		final WatsonHelper watHelper = WatsonHelper.getInstance(lang);
 		JSONObject context = null;
-		try {
-			if (bodyObj instanceof JSONObject) {
-				try {
-					context = ((JSONObject) bodyObj).optJSONObject("context");
-					JSONObject lastResult = watHelper.getLastResult(clientId);
-					if (lastResult != null) {
-						JSONObject lastContext = lastResult.getJSONObject("context");
-						for (Iterator<String> it = context.keys(); it.hasNext();) {
-							String key = it.next();
-							lastContext.put(key, context.get(key));
-						}
-						watHelper.setLastResult(clientId, lastResult);
+		if (bodyObj instanceof JSONObject) {
+			try {
+				context = ((JSONObject) bodyObj).optJSONObject("context");
+				watHelper.mergeContext(clientId, context);
+			} catch (Exception e) {
+			}
+		}
+		final String resultLang = lang;
+		if (mAsync && request.isAsyncSupported()) {
+			final AsyncContext async = request.startAsync();
+			final AtomicBoolean done = new AtomicBoolean();
+			final CompletableFuture<JSONObject> future = watHelper.postMessageAsync(clientId, text, context);
+			async.setTimeout(ASYNC_TIMEOUT);
+			async.addListener(new AsyncListener() {
+				public void onTimeout(AsyncEvent event) throws IOException {
+					if (done.compareAndSet(false, true)) {
+						future.cancel(false);
+						((HttpServletResponse) event.getAsyncContext().getResponse())
+								.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+						event.getAsyncContext().complete();
 					}
-				} catch (Exception e) {
 				}
-			}
-			for(int retry = 0; retry++ < 2;) {
-				try {
-					result = watHelper.postMessage(clientId, text, context);
-					break;
-				} catch (Exception e) {
-					e.printStackTrace();
-					Thread.sleep(500);
+
+				public void onStartAsync(AsyncEvent event) throws IOException {
 				}
-			}
+
+				public void onError(AsyncEvent event) throws IOException {
+					if (done.compareAndSet(false, true)) {
+						future.cancel(false);
+						event.getAsyncContext().complete();
+					}
+				}
+
+				public void onComplete(AsyncEvent event) throws IOException {
+				}
+			});
+			future.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+				public void accept(final JSONObject result, Throwable error) {
+					if (error instanceof CancellationException) {
+						return;
+					}
+					if (error != null) {
+						error.printStackTrace();
+					}
+					if (done.compareAndSet(false, true)) {
+						async.start(new Runnable() {
+							public void run() {
+								try {
+									sendResult(clientId, resultLang, text, result, (HttpServletResponse) async.getResponse());
+								} catch (Exception e) {
+									e.printStackTrace();
+								} finally {
+									async.complete();
+								}
+							}
+						});
+					}
+				}
+			});
+			return;
+		}
+		JSONObject result = null;
+		try {
+			result = watHelper.postMessage(clientId, text, context);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		sendResult(clientId, lang, text, result, response);
+	}
+
+	private void sendResult(String clientId, String lang, String text, JSONObject result, HttpServletResponse response)
+			throws IOException {
 		try {
 			int errorCount = 0;
 			JSONObject lastResult = result;
 			if (result == null) {
 				try {
-					try {
-						errorCount = mLastResultMap.getJSONObject(clientId).getJSONObject("context")
-								.getInt("error_count");
-					} catch (Exception e) {
-					}
+					errorCount = WatsonHelper.getErrorCount(clientId);
 					JSONObject messages = CommonUtil.load("/data/messages/" + lang + ".json");
 					String agent_name = messages.getString("ERROR");
 					if (errorCount++ < 1) {
@@ -152,11 +204,15 @@ public class ServiceServlet extends HttpServlet {
 					lastResult.getJSONObject("context").put("error_count", errorCount);
 				}
 				CommonUtil.sendJSON(lastResult, response);
-				mLastResultMap.put(clientId, lastResult);
-				try {
-					logHelper.saveLog(clientId, lastResult);
-				} catch (Exception e) {
-					e.printStackTrace();
+				WatsonHelper.setLastResponse(clientId, lastResult, errorCount);
+				if (mAsync) {
+					logHelper.saveLogAsync(clientId, lastResult);
+				} else {
+					try {
+						logHelper.saveLog(clientId, lastResult);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
 				return;
 			}
@@ -201,4 +257,17 @@ public class ServiceServlet extends HttpServlet {
 		doGet(request, response);
 	}
 
+	/**
+	 * @see HttpServlet#destroy()
+	 */
+	public void destroy() {
+		textFilter.close();
+		QAHelper.shutdown();
+		logHelper.shutdown();
+		SessionStore.shutdown();
+		Extra.shutdown();
+		RemoteConfig.shutdown();
+		super.destroy();
+	}
+
 }
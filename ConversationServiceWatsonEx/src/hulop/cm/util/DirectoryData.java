@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+
+package hulop.cm.util;
+
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/*
+ * The parts of an endpoint_directory response the conversation uses, read
+ * token by token. Items under "sections" go straight into a FacilityTable
+ * per language without building the item tree; only the category, tag and
+ * building maps are kept as JSON.
+ */
+class DirectoryData {
+	private static final Set<String> ROOT_KEYS = new LinkedHashSet<String>(Arrays.asList("major_categories",
+			"sub_categories", "tags", "building_floors", "building_group"));
+
+	final JSONObject lastUpdated;
+	final NodePool nodePool = new NodePool();
+	private final Map<String, JSONObject> roots = new HashMap<String, JSONObject>();
+	private final Map<String, FacilityTable> tables = new HashMap<String, FacilityTable>();
+
+	private DirectoryData(JsonParser parser) throws JSONException {
+		JSONObject lastUpdated = null;
+		expect(parser, Event.START_OBJECT);
+		for (Event event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+			String key = parser.getString();
+			event = parser.next();
+			if ("last_updated".equals(key)) {
+				lastUpdated = (JSONObject) readValue(parser, event, null);
+			} else if (event == Event.START_OBJECT) {
+				readLanguage(parser, key);
+			} else {
+				skip(parser, event);
+			}
+		}
+		this.lastUpdated = lastUpdated;
+	}
+
+	static DirectoryData read(Reader reader) throws JSONException {
+		JsonParser parser = Json.createParser(reader);
+		try {
+			return new DirectoryData(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	Set<String> getLanguages() {
+		return roots.keySet();
+	}
+
+	/*
+	 * Takes over the root maps and tables of languages whose content equals
+	 * the previous directory's, so that everything built from them can be
+	 * kept.
+	 */
+	void reuse(DirectoryData previous) {
+		for (String lang : roots.keySet()) {
+			JSONObject root = previous.roots.get(lang);
+			FacilityTable table = previous.tables.get(lang);
+			if (root != null && table != null && root.equals(roots.get(lang)) && table.hasSameFacilities(tables.get(lang))) {
+				roots.put(lang, root);
+				tables.put(lang, table);
+			}
+		}
+	}
+
+	boolean isSame(String lang, DirectoryData other) {
+		return roots.get(lang) == other.roots.get(lang) && tables.get(lang) == other.tables.get(lang);
+	}
+
+	JSONObject getRoot(String lang) {
+		return roots.get(lang);
+	}
+
+	FacilityTable getTable(String lang) {
+		return tables.get(lang);
+	}
+
+	/*
+	 * Strings are pooled per language so that a facility name repeated in
+	 * many category and floor lists is held once. An object without sections
+	 * or any of the root maps is not a language and is dropped.
+	 */
+	private void readLanguage(JsonParser parser, String lang) throws JSONException {
+		JSONObject root = new JSONObject();
+		Map<String, FacilityTable.Entry> entries = new LinkedHashMap<String, FacilityTable.Entry>();
+		Map<String, String> pool = new HashMap<String, String>();
+		boolean hasSections = false;
+		for (Event event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+			String key = parser.getString();
+			event = parser.next();
+			if ("sections".equals(key) && event == Event.START_ARRAY) {
+				readSections(parser, entries, pool);
+				hasSections = true;
+			} else if (ROOT_KEYS.contains(key)) {
+				root.put(key, readValue(parser, event, pool));
+			} else {
+				skip(parser, event);
+			}
+		}
+		if (!hasSections && root.isEmpty()) {
+			return;
+		}
+		roots.put(lang, root);
+		tables.put(lang, new FacilityTable(entries.values(), lang, nodePool));
+	}
+
+	private void readSections(JsonParser parser, Map<String, FacilityTable.Entry> entries, Map<String, String> pool) {
+		for (Event event = parser.next(); event != Event.END_ARRAY; event = parser.next()) {
+			if (event != Event.START_OBJECT) {
+				skip(parser, event);
+				continue;
+			}
+			for (event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+				String key = parser.getString();
+				event = parser.next();
+				if ("items".equals(key) && event == Event.START_ARRAY) {
+					for (event = parser.next(); event != Event.END_ARRAY; event = parser.next()) {
+						if (event == Event.START_OBJECT) {
+							readItem(parser, entries, pool);
+						} else {
+							skip(parser, event);
+						}
+					}
+				} else {
+					skip(parser, event);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Same merge rules as the tree scan: an item with "content" only
+	 * contributes its nested sections, the first item of a name keeps its
+	 * pron and description, nodes are merged and the last user_mode value
+	 * wins.
+	 */
+	private void readItem(JsonParser parser, Map<String, FacilityTable.Entry> entries, Map<String, String> pool) {
+		String title = null, pron = null, description = null, nodeID = null;
+		Map<String, Boolean> modes = new HashMap<String, Boolean>();
+		boolean hasContent = false;
+		for (Event event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+			String key = parser.getString();
+			event = parser.next();
+			if ("content".equals(key) && event == Event.START_OBJECT) {
+				hasContent = true;
+				for (event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+					boolean sections = "sections".equals(parser.getString());
+					event = parser.next();
+					if (sections && event == Event.START_ARRAY) {
+						readSections(parser, entries, pool);
+					} else {
+						skip(parser, event);
+					}
+				}
+			} else if ("title".equals(key)) {
+				title = intern(pool, readString(parser, event));
+			} else if ("titlePron".equals(key)) {
+				pron = readString(parser, event);
+			} else if ("short_description".equals(key)) {
+				description = readString(parser, event);
+			} else if ("nodeID".equals(key)) {
+				nodeID = readString(parser, event);
+			} else if (FacilityTable.USER_MODES[0].equals(key) || FacilityTable.USER_MODES[1].equals(key)) {
+				modes.put(key, event != Event.VALUE_FALSE && !(event == Event.VALUE_STRING && "false".equalsIgnoreCase(parser.getString())));
+			} else {
+				skip(parser, event);
+			}
+		}
+		if (hasContent || title == null || nodeID == null) {
+			return;
+		}
+		Set<String> nodes = new LinkedHashSet<String>(Arrays.asList(nodeID.split("\\|")));
+		FacilityTable.Entry entry = entries.get(title);
+		if (entry != null) {
+			nodes.addAll(entry.nodes);
+			entry.nodes.clear();
+		} else {
+			entries.put(title, entry = new FacilityTable.Entry(title));
+			entry.pron = pron;
+			entry.description = description;
+		}
+		for (Map.Entry<String, Boolean> mode : modes.entrySet()) {
+			entry.setFlag(mode.getKey(), mode.getValue());
+		}
+		entry.nodes.addAll(nodes);
+	}
+
+	private static String readString(JsonParser parser, Event event) {
+		switch (event) {
+		case VALUE_STRING:
+		case VALUE_NUMBER:
+			return parser.getString();
+		case VALUE_TRUE:
+			return "true";
+		case VALUE_FALSE:
+			return "false";
+		default:
+			skip(parser, event);
+			return null;
+		}
+	}
+
+	private static String intern(Map<String, String> pool, String value) {
+		if (value == null || pool == null) {
+			return value;
+		}
+		String interned = pool.get(value);
+		if (interned == null) {
+			pool.put(value, interned = value);
+		}
+		return interned;
+	}
+
+	private static Object readValue(JsonParser parser, Event event, Map<String, String> pool) throws JSONException {
+		switch (event) {
+		case START_OBJECT:
+			JSONObject object = new JSONObject();
+			for (event = parser.next(); event == Event.KEY_NAME; event = parser.next()) {
+				String key = parser.getString();
+				object.put(intern(pool, key), readValue(parser, parser.next(), pool));
+			}
+			return object;
+		case START_ARRAY:
+			JSONArray array = new JSONArray();
+			for (event = parser.next(); event != Event.END_ARRAY; event = parser.next()) {
+				array.add(readValue(parser, event, pool));
+			}
+			return array;
+		case VALUE_STRING:
+			return intern(pool, parser.getString());
+		case VALUE_NUMBER:
+			if (parser.isIntegralNumber()) {
+				long value = parser.getLong();
+				return value == (int) value ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value);
+			}
+			return new BigDecimal(parser.getString()).doubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		default:
+			return null;
+		}
+	}
+
+	private static void skip(JsonParser parser, Event event) {
+		if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+			for (int depth = 1; depth > 0;) {
+				switch (parser.next()) {
+				case START_OBJECT:
+				case START_ARRAY:
+					depth++;
+					break;
+				case END_OBJECT:
+				case END_ARRAY:
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+	}
+
+	private static void expect(JsonParser parser, Event expected) throws JSONException {
+		Event event = parser.next();
+		if (event != expected) {
+			throw new JSONException("Expected " + expected + " but got " + event);
+		}
+	}
+}
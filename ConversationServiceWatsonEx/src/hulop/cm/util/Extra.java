@@ -22,15 +22,48 @@
 
 package hulop.cm.util;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
-import java.util.Comparator;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.fluent.Content;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.client.fluent.Response;
+import org.apache.http.entity.ContentType;
 import org.apache.wink.json4j.JSON;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
@@ -38,10 +71,38 @@ import org.apache.wink.json4j.JSONObject;
 
 public class Extra {
 
-	private JSONObject directory_config, directory_data, infoCache;
+	private static final Pattern PAT_FLOOR = Pattern.compile("^(B)?(\\d+)F?$", Pattern.CASE_INSENSITIVE);
+	private static final int TIMEOUT = 15 * 1000;
+	private static final long FETCH_TIMEOUT = 60 * 1000;
+	public static final String[] INFO_MAP_KEYS = new String[] { "info_map", "maj_category_map", "sub_category_map",
+			/* "min_category_map", */ "tags_map", "disabled_nodes", "maj_category_map_available",
+			"sub_category_map_available", /* "min_category_map_available", */ "tags_map_available", "alias_map",
+			"building_floor_map", "building_floor_map_available", "building_group_map", "whole_maj_map", "whole_map",
+			"whole_tags_map" };
+
+	private static ScheduledExecutorService sRefresher, sTileRefresher;
+	private static ExecutorService sFetcher;
+
+	private JSONObject directory_config;
 	private final JSONObject nameCache = new JSONObject();
-	private double lat, lng;
-	private long lastChecked;
+	private long refreshInterval = 60, disabledInterval = 10 * 60, initialWait = 20 * 1000;
+	private double tileSize;
+	private int maxShards = 16;
+	private long shardInterval = 10 * 1000, lastShardCreated;
+	private boolean pruneBuildingMaps;
+	private int floorRange = -1;
+	private String defaultTile;
+	private Shard defaultShard;
+	private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Shard> eldest) {
+			if (size() > maxShards) {
+				eldest.getValue().stop();
+				return true;
+			}
+			return false;
+		}
+	};
 
 	public Extra() {
 		try {
@@ -52,86 +113,309 @@ public class Extra {
 			} catch (Exception e) {
 				location = directory_config.getJSONObject("default_location");
 			}
-			lat = location.getDouble("lat");
-			lng = location.getDouble("lng");
+			refreshInterval = directory_config.optLong("refresh_interval", refreshInterval);
+			disabledInterval = directory_config.optLong("disabled_interval", disabledInterval);
+			initialWait = directory_config.optLong("initial_wait", initialWait / 1000) * 1000;
+			tileSize = directory_config.optDouble("shard_tile_size", 0);
+			maxShards = directory_config.optInt("max_shards", maxShards);
+			shardInterval = directory_config.optLong("shard_interval", shardInterval / 1000) * 1000;
+			pruneBuildingMaps = directory_config.optBoolean("prune_building_maps", false);
+			floorRange = directory_config.optInt("prune_floor_range", floorRange);
+			double lat = location.getDouble("lat"), lng = location.getDouble("lng");
+			defaultTile = getTile(lat, lng);
+			defaultShard = new Shard(lat, lng, getRefresher());
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void putInfoMap(JSONObject context, String lang) throws JSONException {
-		sync();
-		if (directory_data != null) {
-			JSONObject infoMap = infoCache.optJSONObject(lang);
-			if (infoMap == null) {
-				try {
-					infoCache.put(lang, infoMap = createInfoMap(lang));
-				} catch (Exception e) {
-					e.printStackTrace();
+		Shard shard = getShard(context);
+		Directory directory = getDirectory(shard);
+		if (directory != null) {
+			String building = pruneBuildingMaps ? context.optString("building", null) : null;
+			if (building != null && !hasBuilding(directory.data.getRoot(lang), building)) {
+				building = null;
+			}
+			String user_mode = context.optString("user_mode", "user_general");
+			if (!Arrays.asList(FacilityTable.USER_MODES).contains(user_mode)) {
+				/* the other modes hide nothing, so they share one snapshot */
+				user_mode = "user_general";
+			}
+			JSONObject snapshot = shard.getSnapshot(directory, lang, user_mode, building);
+			if (snapshot != null) {
+				context.putAll(snapshot);
+				if (building != null && floorRange >= 0 && context.has("floor")) {
+					Integer floor = parseFloor(context.get("floor"));
+					if (floor != null) {
+						pruneFloors(context, "building_floor_map", floor);
+						pruneFloors(context, "building_floor_map_available", floor);
+					}
 				}
 			}
-			if (infoMap != null) {
-				context.putAll(infoMap);
-				putDynamicMap(context, lang);
-				if (context.has("maj_category_map_available")) {
-					context.put("whole_maj_map", context.get("maj_category_map_available"));
+		}
+	}
+
+	/*
+	 * Keeps the floors within prune_floor_range of the client floor. The
+	 * snapshot maps are shared, so the pruned maps are new objects. Floors
+	 * that are not numbered like 2F or B1F are always kept.
+	 */
+	private void pruneFloors(JSONObject context, String mapName, int floor) throws JSONException {
+		JSONObject map = context.optJSONObject(mapName);
+		if (map != null) {
+			JSONObject pruned = new JSONObject();
+			for (Iterator<String> bit = map.keys(); bit.hasNext();) {
+				String building = bit.next();
+				JSONObject floor_map = map.getJSONObject(building), to = new JSONObject();
+				for (Iterator<String> fit = floor_map.keys(); fit.hasNext();) {
+					String key = fit.next();
+					Integer value = parseFloor(key);
+					if (value == null || Math.abs(floorIndex(value) - floorIndex(floor)) <= floorRange) {
+						to.put(key, floor_map.get(key));
+					}
 				}
-				if (context.has("sub_category_map_available")) {
-					context.put("whole_map", context.get("sub_category_map_available"));
+				pruned.put(building, to);
+			}
+			context.put(mapName, pruned);
+		}
+	}
+
+	/*
+	 * There is no floor 0, so B1F is shifted next to 1F when counting floors.
+	 */
+	private static int floorIndex(int floor) {
+		return floor < 0 ? floor + 1 : floor;
+	}
+
+	/*
+	 * 1F is 1 and B1F is -1, as the client reports them.
+	 */
+	private static Integer parseFloor(Object floor) {
+		if (floor instanceof Number) {
+			return ((Number) floor).intValue();
+		}
+		if (floor instanceof String) {
+			Matcher m = PAT_FLOOR.matcher(((String) floor).trim());
+			if (m.matches()) {
+				int value = Integer.parseInt(m.group(2));
+				return m.group(1) != null ? -value : value;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * With shard_tile_size set, a client that sends latitude/longitude is
+	 * served the directory of the tile it is in, loaded around the tile
+	 * center. Tiles are kept in an LRU of max_shards, each refreshed in the
+	 * background while it is cached. Other clients, and the tile of the
+	 * default location, use the default shard.
+	 *
+	 * Tile shards are refreshed on their own thread so that they cannot delay
+	 * the default shard, at most one new tile is admitted per shard_interval,
+	 * and a tile is served from the default shard until its first load.
+	 */
+	private Shard getShard(JSONObject context) {
+		if (tileSize > 0 && context != null && context.has("latitude") && context.has("longitude")) {
+			try {
+				double lat = context.getDouble("latitude"), lng = context.getDouble("longitude");
+				String tile = getTile(lat, lng);
+				if (!tile.equals(defaultTile)) {
+					synchronized (shards) {
+						Shard shard = shards.get(tile);
+						if (shard == null) {
+							long now = System.currentTimeMillis();
+							if (now - lastShardCreated < shardInterval) {
+								return defaultShard;
+							}
+							lastShardCreated = now;
+							shards.put(tile, shard = new Shard((Math.floor(lat / tileSize) + 0.5) * tileSize,
+									(Math.floor(lng / tileSize) + 0.5) * tileSize, getTileRefresher()));
+						}
+						return shard.directory != null ? shard : defaultShard;
+					}
 				}
-				if (context.has("tags_map_available")) {
-					context.put("whole_tags_map", context.get("tags_map_available"));
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+		}
+		return defaultShard;
+	}
+
+	private String getTile(double lat, double lng) {
+		return tileSize > 0 ? (long) Math.floor(lat / tileSize) + "," + (long) Math.floor(lng / tileSize) : "";
+	}
+
+	private JSONObject createSnapshot(Directory directory, String lang, String user_mode, String building) throws JSONException {
+		JSONObject infoMap = directory.infoCache.get(lang);
+		if (infoMap == null) {
+			synchronized (directory) {
+				infoMap = directory.infoCache.get(lang);
+				if (infoMap == null) {
+					try {
+						directory.infoCache.put(lang, infoMap = createInfoMap(directory, lang, null));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
-				new MapSorter(context).run();
 			}
 		}
+		if (infoMap == null) {
+			return null;
+		}
+		FacilityTable table = directory.tables.get(lang);
+		JSONObject context = new JSONObject();
+		context.put("user_mode", user_mode);
+		context.putAll(infoMap);
+		putDynamicMap(directory, table, context, lang, building);
+		if (context.has("maj_category_map_available")) {
+			context.put("whole_maj_map", context.get("maj_category_map_available"));
+		}
+		if (context.has("sub_category_map_available")) {
+			context.put("whole_map", context.get("sub_category_map_available"));
+		}
+		if (context.has("tags_map_available")) {
+			context.put("whole_tags_map", context.get("tags_map_available"));
+		}
+		context.remove("user_mode");
+		return context;
+	}
+
+	/*
+	 * The info_map entry for a facility of the directory serving the context,
+	 * or null.
+	 */
+	public JSONObject getInfo(JSONObject context, String lang, String name) {
+		FacilityTable table = getTable(context, lang);
+		if (table != null) {
+			try {
+				return table.getInfo(name);
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	public JSONObject getInfoMap(JSONObject context, String lang) throws JSONException {
+		FacilityTable table = getTable(context, lang);
+		return table != null ? table.getInfoMap() : null;
+	}
+
+	public boolean hasInfoMap(JSONObject context, String lang) {
+		return getTable(context, lang) != null;
+	}
+
+	private FacilityTable getTable(JSONObject context, String lang) {
+		Directory directory = getDirectory(getShard(context));
+		return directory != null ? directory.tables.get(lang) : null;
+	}
+
+	/*
+	 * Until the default shard has been loaded once, requests wait up to
+	 * initial_wait seconds for it instead of going out without the maps.
+	 */
+	private Directory getDirectory(Shard shard) {
+		if (shard == null) {
+			return null;
+		}
+		Directory directory = shard.directory;
+		if (directory == null && shard == defaultShard) {
+			directory = shard.awaitDirectory(initialWait);
+		}
+		return directory;
+	}
+
+	/*
+	 * Changes whenever the maps injected for the language from the default
+	 * shard may have changed.
+	 */
+	public long getVersion(String lang) {
+		Directory directory = getDirectory(defaultShard);
+		return directory != null ? directory.getVersion(lang) : 0;
 	}
 
 	public void removeInfoMap(JSONObject context) {
-		context.remove("info_map");
-		context.remove("maj_category_map");
-		context.remove("sub_category_map");
-//		context.remove("min_category_map");
-		context.remove("tags_map");
-		context.remove("disabled_nodes");
-		context.remove("maj_category_map_available");
-		context.remove("sub_category_map_available");
-//		context.remove("min_category_map_available");
-		context.remove("tags_map_available");
-		context.remove("alias_map");
-		context.remove("building_floor_map");
-		context.remove("building_floor_map_available");
-		context.remove("building_group_map");
-		context.remove("whole_maj_map");
-		context.remove("whole_map");
-		context.remove("whole_tags_map");
-	}
-
-	private void sync() {
-		long now = System.currentTimeMillis();
-		if (directory_data == null || now > lastChecked + 60 * 1000) {
-			lastChecked = now;
+		for (String key : INFO_MAP_KEYS) {
+			context.remove(key);
+		}
+	}
+
+	private Future<Object> fetch(final String uri) {
+		return getFetcher().submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return exec(uri);
+			}
+		});
+	}
+
+	private Future<DirectoryData> fetchDirectory(final String uri) {
+		return getFetcher().submit(new Callable<DirectoryData>() {
+			@Override
+			public DirectoryData call() throws Exception {
+				System.out.println(uri);
+				Request request = Request.Get(new URI(uri)).connectTimeout(TIMEOUT).socketTimeout(TIMEOUT);
+				return Executor.newInstance().execute(request).handleResponse(DIRECTORY_HANDLER);
+			}
+		});
+	}
+
+	/*
+	 * Reads the directory as it streams in; neither the body nor the parsed
+	 * item tree is held in memory.
+	 */
+	private static final ResponseHandler<DirectoryData> DIRECTORY_HANDLER = new ResponseHandler<DirectoryData>() {
+		public DirectoryData handleResponse(HttpResponse response) throws IOException {
+			StatusLine statusLine = response.getStatusLine();
+			HttpEntity entity = response.getEntity();
+			if (statusLine.getStatusCode() >= 300) {
+				throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+			}
+			if (entity == null) {
+				throw new IOException("No content");
+			}
+			Charset charset = ContentType.getOrDefault(entity).getCharset();
+			Reader reader = new BufferedReader(new InputStreamReader(entity.getContent(), charset != null ? charset : Consts.UTF_8));
 			try {
-				if (directory_data != null) {
-					JSONObject last_updated = (JSONObject)exec(directory_config.getString("endpoint_last_updated"));
-					if (directory_data.getJSONObject("last_updated").equals(last_updated)) {
-						return;
-					}
-				}
-				infoCache = new JSONObject();
-				directory_data = (JSONObject)exec(String.format(directory_config.getString("endpoint_directory"), lat, lng));
-				lastDisableChecked = 0;
+				return DirectoryData.read(reader);
+			} catch (Exception e) {
+				throw new IOException(e);
+			} finally {
+				reader.close();
+			}
+		}
+	};
+
+	/*
+	 * Waits at most FETCH_TIMEOUT so that a stalled response cannot hold the
+	 * refresher thread shared by all shards.
+	 */
+	private static <T> T get(Future<T> future) {
+		if (future != null) {
+			try {
+				return future.get(FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
 			} catch (Exception e) {
+				future.cancel(true);
 				e.printStackTrace();
 			}
 		}
+		return null;
 	}
 
-	private JSONObject createInfoMap(String lang) throws JSONException {
-		JSONObject root = directory_data.getJSONObject(lang);
-		JSONObject info_map = new JSONObject(), alias_map = new JSONObject();
-		JSONObject infoMap = new JSONObject().put("info_map", info_map).put("alias_map", alias_map);
-		scanData(root, info_map);
+	/*
+	 * When the previous directory is given, category maps whose source lists
+	 * and aliases did not change are taken over from it.
+	 */
+	private JSONObject createInfoMap(Directory directory, String lang, Directory previous) throws JSONException {
+		JSONObject root = directory.data.getRoot(lang);
+		FacilityTable base = directory.data.getTable(lang);
+		if (root == null || base == null) {
+			throw new JSONException("No directory for " + lang);
+		}
+		Map<String, FacilityTable.Entry> entries = null;
+		List<String[]> aliasList = new ArrayList<String[]>();
 		JSONArray aliases = RemoteConfig.getObject("aliases").optJSONArray(lang);
 		if (aliases != null) {
 			for (Object o : aliases) {
@@ -140,102 +424,180 @@ public class Extra {
 				String conv_pron = obj.optString("pron");
 				String dest_name = obj.optString("dest_name");
 				if (conv_name != null && dest_name != null) {
-					JSONObject info = info_map.optJSONObject(dest_name);
-					if (info != null) {
-						alias_map.append(dest_name, conv_name);
-						JSONObject lastInfo = info_map.optJSONObject(conv_name);
-						info_map.put(conv_name, info = (JSONObject) info.clone());
-						info.put("name", conv_name);
-						info.put("pron", conv_pron != null ? conv_pron : conv_name);
-						if (lastInfo != null) {
-							info.put("nodes", info.getString("nodes") + "|" + lastInfo.getString("nodes"));
+					if (entries == null) {
+						entries = base.getEntries();
+					}
+					FacilityTable.Entry entry = entries.get(dest_name);
+					if (entry != null) {
+						aliasList.add(new String[] { dest_name, conv_name });
+						FacilityTable.Entry lastEntry = entries.get(conv_name);
+						entries.put(conv_name, entry = entry.copy(conv_name));
+						entry.pron = conv_pron != null ? conv_pron : conv_name;
+						if (lastEntry != null) {
+							entry.nodes.addAll(lastEntry.nodes);
 						}
 					}
 				}
 			}
 		}
-		JSONObject name_map = nameCache.optJSONObject(lang);
-		if (name_map == null) {
-			try {
-				name_map = CommonUtil.load("/data/categories/" + lang + ".json");
-			} catch (Exception e) {
-				name_map = new JSONObject();
+		FacilityTable table = entries != null ? new FacilityTable(entries.values(), lang, directory.data.nodePool) : base;
+		directory.tables.put(lang, table);
+		JSONObject alias_map = new JSONObject();
+		for (String[] alias : aliasList) {
+			alias_map.append(table.getName(table.getId(alias[0])), table.getName(table.getId(alias[1])));
+		}
+		JSONObject infoMap = new JSONObject().put("alias_map", alias_map);
+		JSONObject name_map;
+		synchronized (nameCache) {
+			name_map = nameCache.optJSONObject(lang);
+			if (name_map == null) {
+				try {
+					name_map = CommonUtil.load("/data/categories/" + lang + ".json");
+				} catch (Exception e) {
+					name_map = new JSONObject();
+				}
+				nameCache.put(lang, name_map);
+			}
+		}
+		JSONObject lastRoot = previous != null ? previous.data.getRoot(lang) : null;
+		JSONObject lastInfo = previous != null ? previous.infoCache.get(lang) : null;
+		boolean sameAliases = lastRoot != null && lastInfo != null && alias_map.equals(lastInfo.get("alias_map"));
+		for (String[] map : new String[][] { { "maj_category_map", "major_categories" }, { "sub_category_map", "sub_categories" } }) {
+			JSONObject source = root.optJSONObject(map[1]);
+			if (sameAliases && source != null && source.equals(lastRoot.optJSONObject(map[1]))) {
+				infoMap.put(map[0], lastInfo.get(map[0]));
+			} else {
+				infoMap.put(map[0], createTagsMap(source, alias_map, name_map, "CAT_"));
 			}
-			nameCache.put(lang, name_map);
 		}
-		infoMap.put("maj_category_map", createTagsMap(root.optJSONObject("major_categories"), alias_map, name_map, "CAT_"));
-		infoMap.put("sub_category_map", createTagsMap(root.optJSONObject("sub_categories"), alias_map, name_map, "CAT_"));
 		System.out.println("---- start of infoMap ----\n" + infoMap.toString(4) + "\n---- end ----");
 		return infoMap;
 	}
 
-	private void putDynamicMap(JSONObject context, String lang) throws JSONException {
-		JSONObject root = directory_data.getJSONObject(lang);
+	private void putDynamicMap(Directory directory, FacilityTable table, JSONObject context, String lang, String building) throws JSONException {
+		JSONObject root = directory.data.getRoot(lang);
+		Set<String> buildings = getBuildings(root, building);
 		JSONObject alias_map = context.optJSONObject("alias_map");
 		JSONObject tag_name_map = RemoteConfig.getObject("tags").optJSONObject(lang);
+		Directory.Filters filters = getFilters(directory, table, alias_map, lang);
 //		context.put("min_category_map", createTagsMap(root.optJSONObject("minor_categories"), alias_map, tag_name_map, ""));
-		context.put("tags_map", createTagsMap(root.optJSONObject("tags"), alias_map, tag_name_map, ""));
+		context.put("tags_map", filters.tags_map);
 
 		try {
-			JSONArray disabled_nodes = getDisabledNodes(context);
-			context.put("disabled_nodes", disabled_nodes);
-			JSONArray hidden_names = RemoteConfig.getObject("hidden_names").optJSONArray(lang, new JSONArray());
-			addInaccessibleNodes(context, hidden_names = new JSONArray(hidden_names.toString()));
+			BitSet excludes = filters.excludes;
+			context.put("disabled_nodes", filters.disabled_nodes);
+			JSONArray hidden_names = new JSONArray(filters.hidden_names);
+			BitSet hidden = (BitSet) filters.hidden.clone();
+			addInaccessibleNodes(table, context.optString("user_mode", "user_general"), hidden_names, hidden);
 			context.put("hidden_names", hidden_names);
-			filterNames(context, "maj_category_map", disabled_nodes, hidden_names);
-			filterNames(context, "sub_category_map", disabled_nodes, hidden_names);
-//			filterNames(context, "min_category_map", disabled_nodes, hidden_names);
-			filterNames(context, "tags_map", disabled_nodes, hidden_names);
-			addBuildingMap(context, "building_floor_map", root.optJSONObject("building_floors"), hidden_names);
+			filterNames(context, "maj_category_map", excludes, hidden, table, false);
+			filterNames(context, "sub_category_map", excludes, hidden, table, false);
+//			filterNames(context, "min_category_map", excludes, hidden, table, false);
+			filterNames(context, "tags_map", excludes, hidden, table, false);
+			addBuildingMap(context, "building_floor_map", root.optJSONObject("building_floors"), directory.disabledSet, hidden, table, buildings);
 
 			// Add building_group_map
 			JSONObject group = root.optJSONObject("building_group");
 			if (group != null && RemoteConfig.getObject("building_group").length() > 0) {
-				JSONObject name_map = nameCache.optJSONObject(lang);
+				JSONObject name_map;
+				synchronized (nameCache) {
+					name_map = nameCache.optJSONObject(lang);
+				}
 				JSONObject building_map = new JSONObject();
-				for (String building : JSONObject.getNames(group)) {
-					JSONObject from = group.getJSONObject(building);
+				for (String name : JSONObject.getNames(group)) {
+					if (buildings != null && !buildings.contains(name)) {
+						continue;
+					}
+					JSONObject from = group.getJSONObject(name);
 					JSONObject to = new JSONObject();
-					building_map.put(building, to);
+					building_map.put(name, to);
 					to.put("maj_category_map", createTagsMap(from.optJSONObject("major_categories"), alias_map, name_map, "CAT_"));
 					to.put("sub_category_map", createTagsMap(from.optJSONObject("sub_categories"), alias_map, name_map, "CAT_"));
 //					to.put("min_category_map", createTagsMap(from.optJSONObject("minor_categories"), alias_map, tag_name_map, ""));
 					to.put("tags_map", createTagsMap(from.optJSONObject("tags"), alias_map, tag_name_map, ""));
-					filterNames(to, "maj_category_map", disabled_nodes, hidden_names);
-					filterNames(to, "sub_category_map", disabled_nodes, hidden_names);
-//					filterNames(to, "min_category_map", disabled_nodes, hidden_names);
-					filterNames(to, "tags_map", disabled_nodes, hidden_names);
+					filterNames(to, "maj_category_map", excludes, hidden, table, true);
+					filterNames(to, "sub_category_map", excludes, hidden, table, true);
+//					filterNames(to, "min_category_map", excludes, hidden, table, true);
+					filterNames(to, "tags_map", excludes, hidden, table, true);
 				}
 				context.put("building_group_map", building_map);
-				mergeGroup(building_map);
+				mergeGroup(building_map, table, buildings);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void mergeGroup(JSONObject building_map) throws JSONException {
-		JSONObject building_group = (JSONObject)RemoteConfig.getObject("building_group").clone();
-		JSONArray removeBuildings =  (JSONArray)building_group.remove("disable");
+	/*
+	 * With prune_building_maps, a client in a known building only gets the
+	 * maps of that building and of the building groups it belongs to. Null
+	 * means the whole site.
+	 */
+	private static Set<String> getBuildings(JSONObject root, String building) throws JSONException {
+		if (building == null || !hasBuilding(root, building)) {
+			return null;
+		}
+		Set<String> buildings = new HashSet<String>();
+		buildings.add(building);
+		JSONObject building_group = RemoteConfig.getObject("building_group");
+		for (Object group_name : building_group.keySet()) {
+			if (!"disable".equals(group_name)) {
+				JSONArray members = building_group.optJSONArray((String) group_name);
+				if (members != null && members.contains(building)) {
+					buildings.add((String) group_name);
+					for (Object member : members) {
+						buildings.add((String) member);
+					}
+				}
+			}
+		}
+		return buildings;
+	}
+
+	private static boolean hasBuilding(JSONObject root, String building) {
+		if (root == null) {
+			return false;
+		}
+		JSONObject floors = root.optJSONObject("building_floors"), group = root.optJSONObject("building_group");
+		return (floors != null && floors.has(building)) || (group != null && group.has(building));
+	}
+
+	/*
+	 * Each group gets the union of its buildings' maps, in the order the
+	 * names are first seen. Duplicates are found with an ID bitset per array.
+	 */
+	private void mergeGroup(JSONObject building_map, FacilityTable table, Set<String> buildings) throws JSONException {
+		JSONObject building_group = RemoteConfig.getObject("building_group");
 		for (String group_name : JSONObject.getNames(building_group)) {
+			if ("disable".equals(group_name) || (buildings != null && !buildings.contains(group_name))) {
+				continue;
+			}
 			JSONObject to = new JSONObject();
-			building_map.put(group_name, to);
+			Map<String, Map<String, BitSet>> seen = new HashMap<String, Map<String, BitSet>>();
 			for (Object building : building_group.getJSONArray(group_name)) {
 				JSONObject from = building_map.optJSONObject((String) building);
 				if (from != null) {
-					for (String map_name : JSONObject.getNames(from)) {
+					for (Iterator<String> mit = from.keys(); mit.hasNext();) {
+						String map_name = mit.next();
 						JSONObject map_to = to.optJSONObject(map_name);
 						if (map_to == null) {
 							to.put(map_name, map_to = new JSONObject());
+							seen.put(map_name, new HashMap<String, BitSet>());
 						}
+						Map<String, BitSet> seen_map = seen.get(map_name);
 						JSONObject map_from = from.getJSONObject(map_name);
-						for (String key : JSONObject.getNames(map_from)) {
+						for (Iterator<String> kit = map_from.keys(); kit.hasNext();) {
+							String key = kit.next();
 							JSONArray titles = map_to.optJSONArray(key);
 							if (titles == null) {
 								map_to.put(key, titles = new JSONArray());
+								seen_map.put(key, new BitSet());
 							}
+							BitSet ids = seen_map.get(key);
 							for (Object title : map_from.getJSONArray(key)) {
-								if (!titles.contains(title)) {
+								int id = table.getId((String) title);
+								if (!ids.get(id)) {
+									ids.set(id);
 									titles.add(title);
 								}
 							}
@@ -243,9 +605,11 @@ public class Extra {
 					}
 				}
 			}
+			building_map.put(group_name, to);
 		}
+		JSONArray removeBuildings = building_group.optJSONArray("disable");
 		if (removeBuildings != null) {
-			for(Object building: removeBuildings) {
+			for (Object building : removeBuildings) {
 				building_map.remove(building);
 			}
 		}
@@ -294,135 +658,95 @@ public class Extra {
 		return destMap;
 	}
 
-	private JSONObject scanData(JSONObject root, JSONObject target) {
-		try {
-			for (Object _section : root.getJSONArray("sections")) {
-				for (Object _item : ((JSONObject) _section).getJSONArray("items")) {
-					JSONObject item = (JSONObject) _item;
-					if (item.has("content")) {
-						scanData(item.getJSONObject("content"), target);
-					} else {
-						String name = item.getString("title");
-						JSONArray nodes = new JSONArray(item.getString("nodeID").split("\\|"));
-						JSONObject info = target.optJSONObject(name);
-						if (info != null) {
-							for (String node : info.getString("nodes").split("\\|")) {
-								if (!nodes.contains(node)) {
-									nodes.put(node);
-								}
-							}
-						} else {
-							target.put(name, info = new JSONObject().put("name", name));
-							if (item.has("titlePron")) {
-								info.put("pron", item.getString("titlePron"));
-							}
-							if (item.has("short_description")) {
-								info.put("pr_short", item.getString("short_description"));
-							}
-						}
-						for (String key : new String[] { "user_stroller", "user_wheelchair" }) {
-							if (item.has(key)) {
-								info.put(key, item.get(key));
-							}
-						}
-						info.put("nodes", nodes.join("|"));
-					}
-				}
-			}
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-		return target;
-	}
-
 	private Object exec(String uri) throws Exception {
 		System.out.println(uri);
-		Request request = Request.Get(new URI(uri));
+		Request request = Request.Get(new URI(uri)).connectTimeout(TIMEOUT).socketTimeout(TIMEOUT);
 		Response response = Executor.newInstance().execute(request);
 		Content content = response.returnContent();
 		return JSON.parse(content.asStream());
 	}
 
-	private JSONArray disabledNodes;
-	private long lastDisableChecked;
-
-	private JSONArray getDisabledNodes(JSONObject context) throws Exception  {
-		long now = System.currentTimeMillis();
-		if (now > lastDisableChecked + 10 * 60 * 1000) {
-			lastDisableChecked = now;
-			disabledNodes = (JSONArray) exec(
-					String.format(directory_config.getString("endpoint_disabled_nodes"), lat, lng));
-		}
-		JSONArray disabled_nodes = new JSONArray();
-		if (disabledNodes != null) {
-			JSONObject info_map = context.getJSONObject("info_map");
-			for (Iterator<String> it = info_map.keys(); it.hasNext();) {
-				String name = it.next();
-				if (!disabled_nodes.contains(name)) {
-					boolean available = false;
-					for (String node : info_map.getJSONObject(name).getString("nodes").split("\\|")) {
-						if (!disabledNodes.contains(node)) {
-							available = true;
-							break;
-						}
-					}
-					if (!available) {
-						disabled_nodes.put(name);
-					}
-				}
+	/*
+	 * The parts of the dynamic maps that do not depend on user_mode, shared by
+	 * the snapshots of all user modes until the directory, its disabled nodes
+	 * or the remote config change.
+	 */
+	private Directory.Filters getFilters(Directory directory, FacilityTable table, JSONObject alias_map, String lang) throws JSONException {
+		long configVersion = RemoteConfig.getVersion();
+		Directory.Filters filters = directory.filters.get(lang);
+		if (filters != null && filters.configVersion == configVersion) {
+			return filters;
+		}
+		synchronized (directory.filters) {
+			filters = directory.filters.get(lang);
+			if (filters != null && filters.configVersion == configVersion) {
+				return filters;
 			}
+			JSONObject tag_name_map = RemoteConfig.getObject("tags").optJSONObject(lang);
+			JSONArray hidden_names = RemoteConfig.getObject("hidden_names").optJSONArray(lang, new JSONArray());
+			BitSet excludes = table.getDisabled(directory.disabledSet);
+			directory.filters.put(lang, filters = new Directory.Filters(configVersion,
+					createTagsMap(directory.data.getRoot(lang).optJSONObject("tags"), alias_map, tag_name_map, ""), excludes,
+					table.toArray(excludes), new JSONArray(hidden_names.toString()), table.toBits(hidden_names)));
 		}
-		return disabled_nodes;
+		return filters;
 	}
 
-	private void addInaccessibleNodes(JSONObject context, JSONArray nodes) throws Exception  {
-		String user_mode = context.optString("user_mode", "user_general");
-		JSONObject info_map = context.getJSONObject("info_map");
-		for (Iterator<String> it = info_map.keys(); it.hasNext();) {
-			String name = it.next();
-			if (!nodes.contains(name) && !info_map.getJSONObject(name).optBoolean(user_mode, true)) {
-				nodes.put(name);
+	private void addInaccessibleNodes(FacilityTable table, String user_mode, JSONArray nodes, BitSet hidden) {
+		BitSet inaccessible = table.getInaccessible(user_mode);
+		for (int id = inaccessible.nextSetBit(0); id >= 0; id = inaccessible.nextSetBit(id + 1)) {
+			if (!hidden.get(id)) {
+				hidden.set(id);
+				nodes.add(table.getName(id));
 			}
 		}
 	}
 
-	private void filterNames(JSONObject context, String mapName, JSONArray excludes, JSONArray hidden_names) throws JSONException {
+	/*
+	 * Replaces the map with a copy without hidden names and adds the
+	 * "_available" view without the excluded (disabled) names. Both are
+	 * computed on facility bitsets and written out in rank order, or in the
+	 * order of the source arrays with keepOrder (the building group maps are
+	 * not sorted).
+	 */
+	private void filterNames(JSONObject context, String mapName, BitSet excludes, BitSet hidden_names, FacilityTable table, boolean keepOrder) throws JSONException {
 		JSONObject allObj = context.optJSONObject(mapName);
 		if (allObj != null) {
-			context.put(mapName, allObj = new JSONObject(allObj.toString())); // deep clone
-			JSONObject availableObj = new JSONObject();
-			context.put(mapName + "_available", availableObj);
+			JSONObject filteredObj = new JSONObject(), availableObj = new JSONObject();
 			for (Iterator<String> it = allObj.keys(); it.hasNext();) {
 				String key = it.next();
-				JSONArray names = allObj.getJSONArray(key);
-				for (Object hide : hidden_names) {
-					names.remove(hide);
-				}
-				names = (JSONArray)names.clone();
-				for (Object ex : excludes) {
-					names.remove(ex);
-				}
-				if (names.length() > 0) {
-					availableObj.put(key, names);
+				JSONArray source = allObj.getJSONArray(key);
+				BitSet names = table.toBits(source);
+				names.andNot(hidden_names);
+				filteredObj.put(key, keepOrder ? table.select(source, names) : table.toArray(names));
+				names.andNot(excludes);
+				if (!names.isEmpty()) {
+					availableObj.put(key, keepOrder ? table.select(source, names) : table.toArray(names));
 				}
 			}
+			context.put(mapName, filteredObj);
+			context.put(mapName + "_available", availableObj);
 		}
 	}
 
-	private void addBuildingMap(JSONObject context, String mapName, JSONObject building_floor_map, JSONArray hidden_names) throws JSONException {
+	private void addBuildingMap(JSONObject context, String mapName, JSONObject building_floor_map, Set<String> disabledNodes, BitSet hidden_names, FacilityTable table, Set<String> buildings) throws JSONException {
 		if (building_floor_map != null) {
 			JSONObject map_any = new JSONObject(), map_available = new JSONObject();
 			for (Iterator<String> bit = building_floor_map.keys(); bit.hasNext();) {
 				String building = bit.next();
+				if (buildings != null && !buildings.contains(building)) {
+					continue;
+				}
 				JSONObject floor_map = building_floor_map.getJSONObject(building);
 				for (Iterator<String> fit = floor_map.keys(); fit.hasNext();) {
 					String floor = fit.next();
 					for (Object obj : floor_map.getJSONArray(floor)) {
 						JSONObject facil = (JSONObject) obj;
-						String title = facil.getString("title");
-						if (hidden_names.contains(title)) {
+						int id = table.getId(facil.getString("title"));
+						if (hidden_names.get(id)) {
 							continue;
 						}
+						String title = table.getName(id);
 						put(map_any, building, floor, title);
 						if (disabledNodes != null && !disabledNodes.contains(facil.getString("node"))) {
 							put(map_available, building, floor, title);
@@ -430,6 +754,13 @@ public class Extra {
 					}
 				}
 			}
+			for (JSONObject map : new JSONObject[] { map_any, map_available }) {
+				for (Object floor_map : map.values()) {
+					for (Object titles : ((JSONObject) floor_map).values()) {
+						table.sort((JSONArray) titles);
+					}
+				}
+			}
 			context.put(mapName, map_any);
 			context.put(mapName + "_available", map_available);
 		}
@@ -448,53 +779,293 @@ public class Extra {
 			array.add(value);
 		}
 	}
-}
 
-class MapSorter {
-	private static final String[] MAP_NAMES = { "maj_category_map", "maj_category_map_available", "sub_category_map",
-			"sub_category_map_available", "tags_map", "tags_map_available", "building_floor_map",
-			"building_floor_map_available", "whole_map", "whole_maj_map", "whole_tags_map" };
+	private static synchronized ScheduledExecutorService getRefresher() {
+		if (sRefresher == null) {
+			sRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Extra-refresher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sRefresher;
+	}
 
-	private final JSONObject context, infoMap;
+	private static synchronized ScheduledExecutorService getTileRefresher() {
+		if (sTileRefresher == null) {
+			sTileRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Extra-tile-refresher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sTileRefresher;
+	}
 
-	public MapSorter(JSONObject context) {
-		this.context = context;
-		this.infoMap = context.optJSONObject("info_map");
+	private static synchronized ExecutorService getFetcher() {
+		if (sFetcher == null) {
+			sFetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Extra-fetcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sFetcher;
 	}
 
-	public void run() {
-		for (String name : MAP_NAMES) {
-			sortMaps(context.opt(name));
+	public static synchronized void shutdown() {
+		if (sRefresher != null) {
+			sRefresher.shutdownNow();
+			sRefresher = null;
+		}
+		if (sTileRefresher != null) {
+			sTileRefresher.shutdownNow();
+			sTileRefresher = null;
+		}
+		if (sFetcher != null) {
+			sFetcher.shutdownNow();
+			sFetcher = null;
 		}
 	}
 
-	private Comparator<Object> comparator = new Comparator<Object>() {
+	/*
+	 * The directory of one location.
+	 */
+	private class Shard implements Runnable {
+		private final double lat, lng;
+		private final ScheduledFuture<?> future;
+		private long lastDisableChecked;
+		private volatile Directory directory;
+		private final Map<String, Map.Entry<String, JSONObject>> snapshots = new ConcurrentHashMap<String, Map.Entry<String, JSONObject>>();
+		private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+		private final Set<String> rebuilding = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		private final CountDownLatch loaded = new CountDownLatch(1);
+
+		Shard(double lat, double lng, ScheduledExecutorService refresher) {
+			this.lat = lat;
+			this.lng = lng;
+			future = refresher.scheduleWithFixedDelay(this, 0, refreshInterval, TimeUnit.SECONDS);
+		}
+
+		void stop() {
+			future.cancel(false);
+		}
+
 		@Override
-		public int compare(Object o1, Object o2) {
-			if (o1 instanceof String && o2 instanceof String) {
-				String title1 = (String)o1, title2 = (String)o2;
-				if (infoMap == null) {
-					return 0;//title1.compareToIgnoreCase(title2);
+		public void run() {
+			try {
+				refresh();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				loaded.countDown(); // the first attempt is over, loaded or not
+			}
+		}
+
+		Directory awaitDirectory(long timeout) {
+			try {
+				loaded.await(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return directory;
+		}
+
+		/*
+		 * Runs on the shard's refresher thread only, so its fetches never
+		 * overlap. The last-updated stamp and the disabled nodes are fetched in
+		 * parallel, and the directory only when the stamp changed. Languages
+		 * whose content did not change keep everything built from them, and
+		 * languages that were in use are rebuilt here before the new directory
+		 * is published. Requests keep using the published directory until a new
+		 * one is complete; a failed fetch keeps the previous data.
+		 */
+		private void refresh() throws JSONException {
+			Directory current = directory;
+			long now = System.currentTimeMillis();
+			Future<Object> lastUpdated = null, disabled = null;
+			Future<DirectoryData> data = null;
+			if (current != null) {
+				lastUpdated = fetch(directory_config.getString("endpoint_last_updated"));
+			}
+			if (current == null || now > lastDisableChecked + disabledInterval * 1000) {
+				disabled = fetch(String.format(directory_config.getString("endpoint_disabled_nodes"), lat, lng));
+			}
+			if (current == null) {
+				data = fetchDirectory(String.format(directory_config.getString("endpoint_directory"), lat, lng));
+			} else {
+				Object last_updated = get(lastUpdated);
+				if (last_updated != null && !last_updated.equals(current.data.lastUpdated)) {
+					if (disabled == null) {
+						disabled = fetch(String.format(directory_config.getString("endpoint_disabled_nodes"), lat, lng));
+					}
+					data = fetchDirectory(String.format(directory_config.getString("endpoint_directory"), lat, lng));
 				}
-				JSONObject info1 = infoMap.optJSONObject(title1), info2 = infoMap.optJSONObject(title2);
-				if (info1 != null && info2 != null) {
-					String pron1 = info1.optString("pron"), pron2 = info2.optString("pron");
-					if (pron1 != null && pron2 != null) {
-						return pron1.compareToIgnoreCase(pron2);
+			}
+			DirectoryData newData = get(data);
+			JSONArray newNodes = (JSONArray) get(disabled);
+			if (disabled != null && newNodes != null) {
+				lastDisableChecked = now;
+			}
+			if (current == null && newData == null) {
+				return;
+			}
+			JSONArray disabledNodes = current != null ? current.disabledNodes : null;
+			if (newNodes != null && !newNodes.equals(disabledNodes)) {
+				disabledNodes = newNodes;
+			} else if (newData == null) {
+				return;
+			}
+			long version = current != null ? current.version + 1 : 1;
+			if (newData != null && current != null) {
+				newData.reuse(current.data);
+			}
+			Directory next = new Directory(newData != null ? newData : current.data, disabledNodes, version, current);
+			if (current != null) {
+				for (String lang : current.infoCache.keySet()) {
+					if (!next.infoCache.containsKey(lang)) {
+						try {
+							next.infoCache.put(lang, createInfoMap(next, lang, current));
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
 					}
 				}
 			}
-			return 0;
+			directory = next;
 		}
-	};
 
-	private void sortMaps(Object parent) {
-		if (parent instanceof JSONObject) {
-			for (Object child : ((JSONObject) parent).values()) {
-				sortMaps(child);
+		/*
+		 * The maps injected into the context depend only on the directory, the
+		 * disabled nodes, the remote config and user_mode, so they are built once
+		 * per combination and shared by every request. A snapshot is rebuilt only
+		 * when its own language changed. A stale snapshot keeps being served
+		 * while its replacement is built on a fetcher thread, so only the first
+		 * request for a combination waits for a build. The returned maps must not
+		 * be modified.
+		 */
+		private JSONObject getSnapshot(final Directory directory, final String lang, final String user_mode, final String building) throws JSONException {
+			final String version = directory.getVersion(lang) + "/" + RemoteConfig.getVersion();
+			final String key = building != null ? lang + "/" + user_mode + "/" + building : lang + "/" + user_mode;
+			Map.Entry<String, JSONObject> snapshot = snapshots.get(key);
+			if (snapshot != null && version.equals(snapshot.getKey())) {
+				return snapshot.getValue();
 			}
-		} else if (parent instanceof JSONArray) {
-			((JSONArray) parent).sort(comparator);
+			if (snapshot != null) {
+				if (rebuilding.add(key)) {
+					getFetcher().execute(new Runnable() {
+						public void run() {
+							try {
+								buildSnapshot(directory, lang, user_mode, building, key, version);
+							} catch (Throwable t) {
+								t.printStackTrace();
+							} finally {
+								rebuilding.remove(key);
+							}
+						}
+					});
+				}
+				return snapshot.getValue();
+			}
+			synchronized (getLock(key)) {
+				snapshot = snapshots.get(key);
+				if (snapshot == null || !version.equals(snapshot.getKey())) {
+					return buildSnapshot(directory, lang, user_mode, building, key, version);
+				}
+			}
+			return snapshot.getValue();
+		}
+
+		private JSONObject buildSnapshot(Directory directory, String lang, String user_mode, String building, String key, String version) throws JSONException {
+			JSONObject context = createSnapshot(directory, lang, user_mode, building);
+			if (context != null) {
+				snapshots.put(key, new SimpleImmutableEntry<String, JSONObject>(version, context));
+			}
+			return context;
+		}
+
+		private Object getLock(String key) {
+			Object lock = locks.get(key);
+			if (lock == null) {
+				Object newLock = new Object();
+				lock = locks.putIfAbsent(key, newLock);
+				if (lock == null) {
+					lock = newLock;
+				}
+			}
+			return lock;
+		}
+	}
+}
+
+/*
+ * One published version of the directory. Never modified after publication
+ * except for the per-language info maps and facility tables, which are built
+ * lazily. Languages whose data did not change keep their info maps, tables
+ * and, if the disabled nodes are also unchanged, their version.
+ */
+class Directory {
+	final DirectoryData data;
+	final JSONArray disabledNodes;
+	final Set<String> disabledSet;
+	final long version;
+	final Map<String, JSONObject> infoCache = new ConcurrentHashMap<String, JSONObject>();
+	final Map<String, FacilityTable> tables = new ConcurrentHashMap<String, FacilityTable>();
+	final Map<String, Filters> filters = new ConcurrentHashMap<String, Filters>();
+	private final Map<String, Long> versions = new HashMap<String, Long>();
+
+	Directory(DirectoryData data, JSONArray disabledNodes, long version, Directory previous) {
+		this.data = data;
+		this.disabledNodes = disabledNodes;
+		this.disabledSet = disabledNodes != null ? new HashSet<String>(disabledNodes) : null;
+		this.version = version;
+		boolean sameNodes = previous != null
+				&& (disabledNodes != null ? disabledNodes.equals(previous.disabledNodes) : previous.disabledNodes == null);
+		for (String lang : data.getLanguages()) {
+			if (previous != null && data.isSame(lang, previous.data)) {
+				JSONObject infoMap = previous.infoCache.get(lang);
+				FacilityTable table = previous.tables.get(lang);
+				if (infoMap != null && table != null) {
+					infoCache.put(lang, infoMap);
+					tables.put(lang, table);
+				}
+				if (sameNodes) {
+					Filters languageFilters = previous.filters.get(lang);
+					if (languageFilters != null && table != null) {
+						filters.put(lang, languageFilters);
+					}
+					versions.put(lang, previous.getVersion(lang));
+					continue;
+				}
+			}
+			versions.put(lang, version);
+		}
+	}
+
+	long getVersion(String lang) {
+		Long version = versions.get(lang);
+		return version != null ? version : this.version;
+	}
+
+	static class Filters {
+		final long configVersion;
+		final JSONObject tags_map;
+		final BitSet excludes, hidden;
+		final JSONArray disabled_nodes, hidden_names;
+
+		Filters(long configVersion, JSONObject tags_map, BitSet excludes, JSONArray disabled_nodes, JSONArray hidden_names, BitSet hidden) {
+			this.configVersion = configVersion;
+			this.tags_map = tags_map;
+			this.excludes = excludes;
+			this.disabled_nodes = disabled_nodes;
+			this.hidden_names = hidden_names;
+			this.hidden = hidden;
 		}
 	}
 }
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+
+package hulop.cm.util;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/*
+ * Facilities of one language in columnar form: one interned name, pron,
+ * description, node ID list and a byte of user_mode flags per facility, and
+ * an inverted node -> facility index. Every map built for the language refers
+ * to the names held here. IDs are assigned in collation order of the pron (or
+ * the name when there is no pron), so an ID is also the facility's sort rank.
+ * Built once per directory version and read-only afterwards.
+ */
+class FacilityTable {
+	static final String[] USER_MODES = { "user_stroller", "user_wheelchair" };
+
+	private final String[] names, prons, descriptions;
+	private final int[][] nodes;
+	private final byte[] flags;
+	private final NodePool nodePool;
+	private final int[][] nodeIndex;
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> extraNames = new ArrayList<String>();
+	private final Map<String, Integer> extraIds = new HashMap<String, Integer>();
+	private final Map<String, BitSet> inaccessibleCache = new ConcurrentHashMap<String, BitSet>();
+
+	private final Comparator<Object> rankComparator = new Comparator<Object>() {
+		@Override
+		public int compare(Object o1, Object o2) {
+			return Integer.compare(getRank(o1), getRank(o2));
+		}
+	};
+
+	/*
+	 * A facility while the directory is being scanned.
+	 */
+	static class Entry {
+		final String name;
+		String pron, description;
+		final Set<String> nodes = new LinkedHashSet<String>();
+		byte flags;
+
+		Entry(String name) {
+			this.name = name;
+		}
+
+		Entry copy(String name) {
+			Entry entry = new Entry(name);
+			entry.pron = pron;
+			entry.description = description;
+			entry.nodes.addAll(nodes);
+			entry.flags = flags;
+			return entry;
+		}
+
+		void setFlag(String user_mode, boolean value) {
+			for (int i = 0; i < USER_MODES.length; i++) {
+				if (USER_MODES[i].equals(user_mode)) {
+					int has = 1 << (i * 2), bit = 1 << (i * 2 + 1);
+					flags = (byte) (value ? flags | has | bit : (flags | has) & ~bit);
+				}
+			}
+		}
+	}
+
+	FacilityTable(Collection<Entry> entries, String lang, NodePool nodePool) {
+		Collator collator = Collator.getInstance(Locale.forLanguageTag(lang));
+		collator.setStrength(Collator.SECONDARY);
+		final Map<Entry, CollationKey> keys = new HashMap<Entry, CollationKey>();
+		for (Entry entry : entries) {
+			keys.put(entry, collator.getCollationKey(entry.pron != null ? entry.pron : entry.name));
+		}
+		Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				int result = keys.get(e1).compareTo(keys.get(e2));
+				return result != 0 ? result : e1.name.compareTo(e2.name);
+			}
+		});
+		int size = sorted.length;
+		names = new String[size];
+		prons = new String[size];
+		descriptions = new String[size];
+		nodes = new int[size][];
+		flags = new byte[size];
+		Map<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+		for (int id = 0; id < size; id++) {
+			Entry entry = sorted[id];
+			names[id] = entry.name;
+			prons[id] = entry.pron;
+			descriptions[id] = entry.description;
+			flags[id] = entry.flags;
+			ids.put(names[id], id);
+			nodes[id] = new int[entry.nodes.size()];
+			int i = 0;
+			for (String node : entry.nodes) {
+				int nodeId = nodePool.add(node);
+				List<Integer> facilities = index.get(nodeId);
+				if (facilities == null) {
+					index.put(nodeId, facilities = new ArrayList<Integer>(1));
+				}
+				facilities.add(id);
+				nodes[id][i++] = nodeId;
+			}
+		}
+		this.nodePool = nodePool;
+		nodeIndex = new int[nodePool.size()][];
+		for (Map.Entry<Integer, List<Integer>> entry : index.entrySet()) {
+			List<Integer> facilities = entry.getValue();
+			int[] array = nodeIndex[entry.getKey()] = new int[facilities.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = facilities.get(i);
+			}
+		}
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	boolean hasSameFacilities(FacilityTable other) {
+		if (!Arrays.equals(names, other.names) || !Arrays.equals(prons, other.prons)
+				|| !Arrays.equals(descriptions, other.descriptions) || !Arrays.equals(flags, other.flags)) {
+			return false;
+		}
+		for (int id = 0; id < names.length; id++) {
+			if (nodes[id].length != other.nodes[id].length) {
+				return false;
+			}
+			for (int i = 0; i < nodes[id].length; i++) {
+				if (!nodePool.getName(nodes[id][i]).equals(other.nodePool.getName(other.nodes[id][i]))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Editable copies of the facilities, in ID order.
+	 */
+	Map<String, Entry> getEntries() {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		for (int id = 0; id < names.length; id++) {
+			Entry entry = new Entry(names[id]);
+			entry.pron = prons[id];
+			entry.description = descriptions[id];
+			entry.flags = flags[id];
+			for (int nodeId : nodes[id]) {
+				entry.nodes.add(nodePool.getName(nodeId));
+			}
+			entries.put(names[id], entry);
+		}
+		return entries;
+	}
+	String getName(int id) {
+		if (id < names.length) {
+			return names[id];
+		}
+		synchronized (extraNames) {
+			return extraNames.get(id - names.length);
+		}
+	}
+
+	/*
+	 * Names that are not facilities (e.g. a category entry without a
+	 * directory item) get IDs after all facilities, in the order they are
+	 * first seen.
+	 */
+	int getId(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			synchronized (extraNames) {
+				id = extraIds.get(name);
+				if (id == null) {
+					extraIds.put(name, id = names.length + extraNames.size());
+					extraNames.add(name);
+				}
+			}
+		}
+		return id;
+	}
+
+	BitSet toBits(List<?> names) {
+		BitSet bits = new BitSet(this.names.length);
+		for (Object name : names) {
+			bits.set(getId((String) name));
+		}
+		return bits;
+	}
+
+	JSONArray toArray(BitSet bits) {
+		JSONArray array = new JSONArray(bits.cardinality());
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			array.add(getName(id));
+		}
+		return array;
+	}
+
+	/*
+	 * The names of the list that are in bits, in list order.
+	 */
+	JSONArray select(List<?> names, BitSet bits) {
+		JSONArray array = new JSONArray(names.size());
+		for (Object name : names) {
+			if (bits.get(getId((String) name))) {
+				array.add(name);
+			}
+		}
+		return array;
+	}
+
+	/*
+	 * Names not in the table sort after all facilities, in their current
+	 * order.
+	 */
+	int getRank(Object name) {
+		Integer id = ids.get(name);
+		return id != null ? id : Integer.MAX_VALUE;
+	}
+
+	void sort(JSONArray names) {
+		names.sort(rankComparator);
+	}
+
+	/*
+	 * Facilities whose nodes are all disabled, in ID order. Only the
+	 * facilities reachable from a disabled node are visited.
+	 */
+	BitSet getDisabled(Set<String> disabledNodes) {
+		BitSet disabled = new BitSet(names.length);
+		if (disabledNodes != null) {
+			int[] remaining = new int[names.length];
+			for (int id = 0; id < remaining.length; id++) {
+				remaining[id] = nodes[id].length;
+			}
+			for (String node : disabledNodes) {
+				int nodeId = nodePool.getId(node);
+				if (nodeId >= 0 && nodeId < nodeIndex.length && nodeIndex[nodeId] != null) {
+					for (int id : nodeIndex[nodeId]) {
+						if (--remaining[id] == 0) {
+							disabled.set(id);
+						}
+					}
+				}
+			}
+		}
+		return disabled;
+	}
+
+	/*
+	 * Facilities explicitly marked as not accessible in the given user_mode.
+	 * The result is shared and must not be modified.
+	 */
+	BitSet getInaccessible(String user_mode) {
+		BitSet inaccessible = inaccessibleCache.get(user_mode);
+		if (inaccessible == null) {
+			inaccessible = new BitSet(names.length);
+			for (int i = 0; i < USER_MODES.length; i++) {
+				if (USER_MODES[i].equals(user_mode)) {
+					int mask = 3 << (i * 2), value = 1 << (i * 2);
+					for (int id = 0; id < flags.length; id++) {
+						if ((flags[id] & mask) == value) {
+							inaccessible.set(id);
+						}
+					}
+				}
+			}
+			inaccessibleCache.put(user_mode, inaccessible);
+		}
+		return inaccessible;
+	}
+
+	/*
+	 * The facility as the info_map entry the dialog code expects, or null.
+	 */
+	JSONObject getInfo(String name) throws JSONException {
+		Integer id = ids.get(name);
+		if (id == null) {
+			return null;
+		}
+		JSONObject info = new JSONObject().put("name", names[id]);
+		if (prons[id] != null) {
+			info.put("pron", prons[id]);
+		}
+		if (descriptions[id] != null) {
+			info.put("pr_short", descriptions[id]);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int nodeId : nodes[id]) {
+			if (sb.length() > 0) {
+				sb.append("|");
+			}
+			sb.append(nodePool.getName(nodeId));
+		}
+		info.put("nodes", sb.toString());
+		for (int i = 0; i < USER_MODES.length; i++) {
+			if ((flags[id] & 1 << (i * 2)) != 0) {
+				info.put(USER_MODES[i], (flags[id] & 1 << (i * 2 + 1)) != 0);
+			}
+		}
+		return info;
+	}
+
+	JSONObject getInfoMap() throws JSONException {
+		JSONObject info_map = new JSONObject();
+		for (String name : names) {
+			info_map.put(name, getInfo(name));
+		}
+		return info_map;
+	}
+}
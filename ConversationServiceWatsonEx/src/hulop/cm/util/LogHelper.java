@@ -23,6 +23,11 @@
 package hulop.cm.util;
 
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Form;
@@ -33,6 +38,7 @@ import org.apache.wink.json4j.JSONObject;
 
 public class LogHelper {
 	private String mEndpoint, mApiKey;
+	private ExecutorService mExecutor;
 
 	public LogHelper() {
 		try {
@@ -62,6 +68,48 @@ public class LogHelper {
 		return response.getStatusLine().getStatusCode() == 200;
 	}
 
+	public void saveLogAsync(final String clientId, final JSONObject log) {
+		if (mApiKey == null) {
+			return;
+		}
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						saveLog(clientId, log);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		} catch (Exception e) {
+			System.err.println("log dropped: " + e.getMessage());
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (mExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "LogHelper");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+			mExecutor = executor;
+		}
+		return mExecutor;
+	}
+
+	public synchronized void shutdown() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+			mExecutor = null;
+		}
+	}
+
 	public JSONArray getLog(String clientId, String start, String end, String skip, String limit) throws Exception {
 		if (mApiKey == null) {
 			return new JSONArray();
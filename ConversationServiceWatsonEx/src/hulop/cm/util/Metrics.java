@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wink.json4j.JSONObject;
+
+public class Metrics {
+
+	public interface Gauge {
+		Object get() throws Exception;
+	}
+
+	/*
+	 * Power-of-two bucketed histogram of non-negative values such as byte
+	 * counts.
+	 */
+	public static class Histogram implements Gauge {
+		private final long[] buckets = new long[64];
+		private long count, sum, max;
+
+		public synchronized void record(long value) {
+			value = Math.max(0, value);
+			buckets[64 - Long.numberOfLeadingZeros(value)]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		public synchronized Object get() throws Exception {
+			JSONObject obj = new JSONObject();
+			obj.put("count", count);
+			obj.put("sum", sum);
+			obj.put("max", max);
+			obj.put("mean", count > 0 ? sum / count : 0);
+			JSONObject le = new JSONObject();
+			for (int i = 0; i < buckets.length; i++) {
+				if (buckets[i] > 0) {
+					le.put(Long.toString(i == 0 ? 0 : (1L << i) - 1), buckets[i]);
+				}
+			}
+			obj.put("buckets", le);
+			return obj;
+		}
+	}
+
+	private static final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	public static void register(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public static void unregister(String name) {
+		gauges.remove(name);
+	}
+
+	public static long increment(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong last = counters.putIfAbsent(name, counter = new AtomicLong());
+			if (last != null) {
+				counter = last;
+			}
+		}
+		return counter.addAndGet(delta);
+	}
+
+	public static Histogram histogram(String name) {
+		Gauge gauge = gauges.get(name);
+		if (!(gauge instanceof Histogram)) {
+			synchronized (gauges) {
+				gauge = gauges.get(name);
+				if (!(gauge instanceof Histogram)) {
+					gauges.put(name, gauge = new Histogram());
+				}
+			}
+		}
+		return (Histogram) gauge;
+	}
+
+	public static JSONObject getSnapshot() {
+		JSONObject snapshot = new JSONObject();
+		for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			try {
+				snapshot.put(entry.getKey(), entry.getValue().get());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(gauges).entrySet()) {
+			try {
+				snapshot.put(entry.getKey(), entry.getValue().get());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return snapshot;
+	}
+}
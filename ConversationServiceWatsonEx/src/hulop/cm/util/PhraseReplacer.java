@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wink.json4j.JSONArray;
+
+/*
+ * Ordered [from, to] rules with the result of applying String.replace for
+ * each rule in turn, compiled into Aho-Corasick automata. Rules are grouped
+ * into stages; one scan of a stage finds every occurrence of its patterns,
+ * and the rules then claim occurrences in their original order, as the
+ * sequential replaces would. A rule has to go to a later stage than an
+ * earlier rule whose replacement it could match, and may go to an earlier
+ * stage than a rule it commutes with. Rules with an empty "from" are left to
+ * String.replace. Built once per rule set and read-only afterwards.
+ */
+public class PhraseReplacer {
+	final long version;
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	public PhraseReplacer(JSONArray rules) {
+		this(rules, 0);
+	}
+
+	PhraseReplacer(JSONArray rules, long version) {
+		this.version = version;
+		List<String> froms = new ArrayList<String>(), tos = new ArrayList<String>();
+		List<Integer> layers = new ArrayList<Integer>(), deletions = new ArrayList<Integer>();
+		List<List<Integer>> byLayer = new ArrayList<List<Integer>>();
+		Map<Character, List<Integer>> byChar = new HashMap<Character, List<Integer>>();
+		int barrier = -1;
+		for (Object obj : rules) {
+			String from, to;
+			try {
+				JSONArray fromTo = (JSONArray) obj;
+				from = fromTo.getString(0);
+				to = fromTo.getString(1);
+			} catch (Exception e) {
+				System.err.println("bad rule " + obj);
+				continue;
+			}
+			if (from.length() == 0) {
+				barrier = stages.size();
+				stages.add(new Stage(from, to));
+				byLayer.add(new ArrayList<Integer>());
+				continue;
+			}
+			/* only replacements sharing a character with the pattern can be seen */
+			int layer = barrier + 1;
+			List<Integer> seen = new ArrayList<Integer>(deletions);
+			for (int i = 0; i < from.length(); i++) {
+				List<Integer> list = byChar.get(from.charAt(i));
+				if (list != null) {
+					seen.addAll(list);
+				}
+			}
+			for (int i : seen) {
+				if (layers.get(i) >= layer && sees(from, froms.get(i), tos.get(i))) {
+					layer = layers.get(i) + 1;
+				}
+			}
+			search: for (int other = byLayer.size() - 1; other > layer; other--) {
+				for (int i : byLayer.get(other)) {
+					if (!commutes(from, to, froms.get(i), tos.get(i))) {
+						layer = other;
+						break search;
+					}
+				}
+			}
+			if (layer == stages.size()) {
+				stages.add(new Stage());
+				byLayer.add(new ArrayList<Integer>());
+			}
+			stages.get(layer).add(from, to);
+			byLayer.get(layer).add(froms.size());
+			if (to.length() == 0) {
+				deletions.add(froms.size());
+			}
+			for (int i = 0; i < to.length(); i++) {
+				List<Integer> list = byChar.get(to.charAt(i));
+				if (list == null) {
+					byChar.put(to.charAt(i), list = new ArrayList<Integer>());
+				}
+				if (list.isEmpty() || list.get(list.size() - 1).intValue() != froms.size()) {
+					list.add(froms.size());
+				}
+			}
+			froms.add(from);
+			tos.add(to);
+			layers.add(layer);
+		}
+		for (Stage stage : stages) {
+			stage.compile();
+		}
+	}
+
+	int getStageCount() {
+		return stages.size();
+	}
+
+	public String replace(String text) {
+		for (Stage stage : stages) {
+			text = stage.replace(text);
+		}
+		return text;
+	}
+
+	/*
+	 * True if the pattern can match text produced by an earlier rule, inside
+	 * or across its replacement. A deletion can join its neighbours into any
+	 * pattern of two or more characters.
+	 */
+	private static boolean sees(String from, String earlierFrom, String earlierTo) {
+		return overlaps(from, earlierTo) || (earlierTo.length() == 0 && from.length() > 1);
+	}
+
+	/*
+	 * Rules commute if their occurrences cannot overlap and neither can see
+	 * the other's replacements.
+	 */
+	private static boolean commutes(String from1, String to1, String from2, String to2) {
+		return !overlaps(from1, from2) && !sees(from1, from2, to2) && !sees(from2, from1, to1);
+	}
+
+	/*
+	 * True if an occurrence of x can share a character with an occurrence of
+	 * y, i.e. one contains the other or a suffix of one is a prefix of the
+	 * other.
+	 */
+	private static boolean overlaps(String x, String y) {
+		if (y.length() == 0) {
+			return false;
+		}
+		if (x.indexOf(y.charAt(y.length() - 1)) < 0 && y.indexOf(x.charAt(x.length() - 1)) < 0) {
+			return false;
+		}
+		if (x.contains(y) || y.contains(x)) {
+			return true;
+		}
+		for (int k = Math.min(x.length(), y.length()) - 1; k > 0; k--) {
+			if (x.regionMatches(x.length() - k, y, 0, k) || y.regionMatches(y.length() - k, x, 0, k)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Stage {
+		private final List<String> froms = new ArrayList<String>(), tos = new ArrayList<String>();
+		private final boolean literal;
+		private final Map<Long, Integer> edges = new HashMap<Long, Integer>();
+		private final List<StringBuilder> labels = new ArrayList<StringBuilder>();
+		private final List<Integer> rules = new ArrayList<Integer>();
+		private int[] fail, terminal, output;
+
+		Stage() {
+			literal = false;
+			newState();
+		}
+
+		Stage(String from, String to) {
+			literal = true;
+			froms.add(from);
+			tos.add(to);
+		}
+
+		void add(String from, String to) {
+			int state = 0;
+			for (int i = 0; i < from.length(); i++) {
+				char c = from.charAt(i);
+				Integer next = edges.get(key(state, c));
+				if (next == null) {
+					edges.put(key(state, c), next = newState());
+					labels.get(state).append(c);
+				}
+				state = next;
+			}
+			if (rules.get(state) < 0) {
+				rules.set(state, froms.size());
+			}
+			froms.add(from);
+			tos.add(to);
+		}
+
+		/*
+		 * terminal is the rule of the pattern ending at a state, and output
+		 * the nearest proper suffix state that ends a pattern.
+		 */
+		void compile() {
+			if (literal) {
+				return;
+			}
+			int size = labels.size();
+			fail = new int[size];
+			terminal = new int[size];
+			output = new int[size];
+			for (int state = 0; state < size; state++) {
+				terminal[state] = rules.get(state);
+			}
+			int[] queue = new int[size];
+			int head = 0, tail = 0;
+			queue[tail++] = 0;
+			while (head < tail) {
+				int state = queue[head++];
+				StringBuilder label = labels.get(state);
+				for (int i = 0; i < label.length(); i++) {
+					char c = label.charAt(i);
+					int next = edges.get(key(state, c));
+					int f = fail[next] = state == 0 ? 0 : step(fail[state], c);
+					output[next] = terminal[f] >= 0 ? f : output[f];
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		/*
+		 * Each rule, in order, takes its leftmost non-overlapping occurrences
+		 * that no earlier rule has taken a character of.
+		 */
+		String replace(String text) {
+			if (literal) {
+				return text.replace(froms.get(0), tos.get(0));
+			}
+			long[] found = null;
+			int count = 0;
+			for (int i = 0, state = 0; i < text.length(); i++) {
+				state = step(state, text.charAt(i));
+				for (int s = terminal[state] >= 0 ? state : output[state]; s > 0; s = output[s]) {
+					if (found == null) {
+						found = new long[8];
+					} else if (count == found.length) {
+						found = Arrays.copyOf(found, count * 2);
+					}
+					int rule = terminal[s];
+					found[count++] = ((long) rule << 32) | (i + 1 - froms.get(rule).length());
+				}
+			}
+			if (count == 0) {
+				return text;
+			}
+			Arrays.sort(found, 0, count);
+			boolean[] taken = new boolean[text.length()];
+			int[] chosen = new int[text.length() + 1];
+			Arrays.fill(chosen, -1);
+			for (int k = 0, rule = -1, end = 0; k < count; k++) {
+				int r = (int) (found[k] >>> 32), start = (int) found[k];
+				if (r != rule) {
+					rule = r;
+					end = 0;
+				}
+				int length = froms.get(r).length();
+				if (start >= end && !taken[start] && !taken[start + length - 1] && free(taken, start, length)) {
+					Arrays.fill(taken, start, start + length, true);
+					chosen[start] = r;
+					end = start + length;
+				}
+			}
+			StringBuilder sb = new StringBuilder(text.length());
+			for (int i = 0; i < text.length();) {
+				int r = chosen[i];
+				if (r >= 0) {
+					sb.append(tos.get(r));
+					i += froms.get(r).length();
+				} else {
+					sb.append(text.charAt(i++));
+				}
+			}
+			return sb.toString();
+		}
+
+		private static boolean free(boolean[] taken, int start, int length) {
+			for (int i = start; i < start + length; i++) {
+				if (taken[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int step(int state, char c) {
+			while (true) {
+				Integer next = edges.get(key(state, c));
+				if (next != null) {
+					return next;
+				}
+				if (state == 0) {
+					return 0;
+				}
+				state = fail[state];
+			}
+		}
+
+		private int newState() {
+			labels.add(new StringBuilder());
+			rules.add(-1);
+			return labels.size() - 1;
+		}
+
+		private static long key(int state, char c) {
+			return ((long) state << 16) | c;
+		}
+	}
+}
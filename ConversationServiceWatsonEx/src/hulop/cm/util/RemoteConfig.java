@@ -19,11 +19,16 @@
  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
  * THE SOFTWARE.
  *******************************************************************************/
-
 package hulop.cm.util;
 
 import java.io.ByteArrayInputStream;
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -36,18 +41,34 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONArtifact;
 import org.apache.wink.json4j.JSONObject;
 
+/*
+ * The conversation config is fetched on a background thread and published as
+ * an immutable snapshot with a version number that increases on every
+ * change. Failed fetches keep the last good config. Only the first reader
+ * waits, for the initial fetch.
+ */
 public class RemoteConfig {
 
-	private String url, last_modified;
-	private long next_check;
-	private JSONArtifact last_artifact;
-	
+	public interface Listener {
+		void onChange(long version);
+	}
+
+	private static final int TIMEOUT = 10 * 1000;
+
+	private final String url;
+	private String last_modified;
+	private volatile boolean attempted;
+	private volatile Snapshot snapshot = new Snapshot(null, 0);
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
 	private static RemoteConfig instance;
+	private static ScheduledExecutorService sRefresher;
 	private static final JSONObject DEFAULT_OBJECT = new JSONObject();
 	private static final JSONArray DEFAULT_ARRAY = new JSONArray();
 	static {
 		try {
 			instance = new RemoteConfig(CommonUtil.getConfig().getString("conversation_config"));
+			instance.start(CommonUtil.getConfig().optLong("conversation_config_interval", 60));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -71,40 +92,125 @@ public class RemoteConfig {
 		}
 	}
 
+	public static long getVersion() {
+		if (instance == null) {
+			return 0;
+		}
+		instance.get();
+		return instance.snapshot.version;
+	}
+
+	/*
+	 * Listeners are called on the refresher thread after a new config has
+	 * been published.
+	 */
+	public static void addListener(Listener listener) {
+		if (instance != null) {
+			instance.listeners.add(listener);
+		}
+	}
+
+	public static void removeListener(Listener listener) {
+		if (instance != null) {
+			instance.listeners.remove(listener);
+		}
+	}
+
+	public static synchronized void shutdown() {
+		if (sRefresher != null) {
+			sRefresher.shutdownNow();
+			sRefresher = null;
+		}
+	}
+
 	public RemoteConfig(String url) {
 		this.url = url;
 	}
 
 	public JSONArtifact get() {
-		long now = System.currentTimeMillis();
-		if (now > next_check) {
-			next_check = now + 60 * 1000;
-			try {
-				Request request = Request.Get(new URI(url));
-				if (last_modified != null) {
-					request.setHeader("If-Modified-Since", last_modified);
+		if (!attempted) {
+			synchronized (this) {
+				if (!attempted) {
+					refresh();
 				}
-				HttpResponse response = Executor.newInstance().execute(request).returnResponse();
-				int sc = response.getStatusLine().getStatusCode();
-				switch (sc) {
-				case HttpStatus.SC_OK:
-					Header header = response.getFirstHeader("Last-Modified");
-					last_modified = header != null ? header.getValue() : null;
-					last_artifact = JSON.parse(new ByteArrayInputStream(EntityUtils.toByteArray(response.getEntity())));
-					last_artifact.write(System.out, 4);
-					break;
-				case HttpStatus.SC_NOT_MODIFIED:
-					break;
-				default:
-					throw new Exception("HttpStatus " + sc);
+			}
+		}
+		return snapshot.artifact;
+	}
+
+	private void start(long interval) {
+		synchronized (RemoteConfig.class) {
+			if (sRefresher == null) {
+				sRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "RemoteConfig-refresher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			sRefresher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
 				}
+			}, 0, interval, TimeUnit.SECONDS);
+		}
+	}
 
-			} catch (Exception e) {
-				last_artifact = null;
-				System.err.println(url + " - " + e.getMessage());
+	private synchronized void refresh() {
+		attempted = true;
+		try {
+			Request request = Request.Get(new URI(url)).connectTimeout(TIMEOUT).socketTimeout(TIMEOUT);
+			if (last_modified != null && snapshot.artifact != null) {
+				request.setHeader("If-Modified-Since", last_modified);
 			}
+			HttpResponse response = Executor.newInstance().execute(request).returnResponse();
+			int sc = response.getStatusLine().getStatusCode();
+			switch (sc) {
+			case HttpStatus.SC_OK:
+				Header header = response.getFirstHeader("Last-Modified");
+				last_modified = header != null ? header.getValue() : null;
+				JSONArtifact artifact = JSON.parse(new ByteArrayInputStream(EntityUtils.toByteArray(response.getEntity())));
+				if (!artifact.equals(snapshot.artifact)) {
+					artifact.write(System.out, 4);
+					publish(artifact);
+				}
+				break;
+			case HttpStatus.SC_NOT_MODIFIED:
+				break;
+			default:
+				throw new Exception("HttpStatus " + sc);
+			}
+		} catch (Exception e) {
+			System.err.println(url + " - " + e.getMessage() + (snapshot.artifact != null ? " (keeping version " + snapshot.version + ")" : ""));
+		}
+	}
+
+	private void publish(JSONArtifact artifact) {
+		Snapshot snapshot = new Snapshot(artifact, this.snapshot.version + 1);
+		this.snapshot = snapshot;
+		for (Listener listener : listeners) {
+			try {
+				listener.onChange(snapshot.version);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private static class Snapshot {
+		final JSONArtifact artifact;
+		final long version;
+
+		Snapshot(JSONArtifact artifact, long version) {
+			this.artifact = artifact;
+			this.version = version;
 		}
-		return last_artifact;
 	}
 
 }
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/*
+ * Answers what ^(m|s.*|.*c.*|.*e)$ with CASE_INSENSITIVE answered for the
+ * repeat phrases, in time linear in the input: a set for whole matches, a
+ * prefix trie, a trie of reversed suffixes and an Aho-Corasick automaton for
+ * contained phrases, all over ASCII case-folded text. As with the pattern,
+ * nothing matches across a line terminator. Phrases containing regex syntax
+ * keep being matched by a pattern of their own.
+ */
+class RepeatMatcher {
+	private static final Pattern PAT_REGEX = Pattern.compile("[\\\\.\\[\\]{}()*+?^$|]");
+
+	final long version;
+	private final Set<String> matches = new HashSet<String>();
+	private final Trie starts = new Trie(), ends = new Trie(), contains = new Trie();
+	private final Pattern fallback;
+
+	RepeatMatcher(List<?> matches, List<?> starts, List<?> contains, List<?> ends, long version) {
+		this.version = version;
+		List<String> regex = new ArrayList<String>();
+		boolean empty = true;
+		for (Object phrase : matches) {
+			if (add(regex, phrase, "", "")) {
+				this.matches.add(fold((String) phrase));
+			}
+			empty = false;
+		}
+		for (Object phrase : starts) {
+			if (add(regex, phrase, "", ".*")) {
+				this.starts.add(fold((String) phrase));
+			}
+			empty = false;
+		}
+		for (Object phrase : contains) {
+			if (add(regex, phrase, ".*", ".*")) {
+				this.contains.add(fold((String) phrase));
+			}
+			empty = false;
+		}
+		for (Object phrase : ends) {
+			if (add(regex, phrase, ".*", "")) {
+				this.ends.add(new StringBuilder(fold((String) phrase)).reverse().toString());
+			}
+			empty = false;
+		}
+		if (empty) {
+			/* the pattern of no phrases was ^()$ */
+			this.matches.add("");
+		}
+		this.starts.compile();
+		this.ends.compile();
+		this.contains.compile();
+		StringBuilder sb = new StringBuilder();
+		for (String phrase : regex) {
+			sb.append(sb.length() > 0 ? "|" : "").append(phrase);
+		}
+		fallback = regex.isEmpty() ? null : Pattern.compile("^(" + sb + ")$", Pattern.CASE_INSENSITIVE);
+		System.out.println("repeat phrases: " + this.matches.size() + " matches, " + this.starts.size + " starts, "
+				+ this.contains.size + " contains, " + this.ends.size + " ends" + (fallback != null ? ", pattern " + fallback : ""));
+	}
+
+	private static boolean add(List<String> regex, Object phrase, String before, String after) {
+		if (PAT_REGEX.matcher(phrase.toString()).find()) {
+			regex.add(before + phrase + after);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The .* parts cannot contain a line terminator, so a starts phrase has to
+	 * reach past the last one, an ends phrase begin before the first one, and
+	 * a contained phrase do both.
+	 */
+	boolean matches(String text) {
+		if (text == null) {
+			return false;
+		}
+		if (fallback != null && fallback.matcher(text).matches()) {
+			return true;
+		}
+		String folded = fold(text);
+		int length = folded.length(), first = length, last = -1;
+		for (int i = 0; i < length; i++) {
+			switch (folded.charAt(i)) {
+			case '\n':
+			case '\r':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				first = Math.min(first, i);
+				last = i;
+			}
+		}
+		if (matches.contains(folded)) {
+			return true;
+		}
+		for (int i = 0, state = 0; state >= 0; i++) {
+			if (starts.terminal[state] && i > last) {
+				return true;
+			}
+			state = i < length ? starts.child(state, folded.charAt(i)) : -1;
+		}
+		for (int i = 0, state = 0; state >= 0; i++) {
+			if (ends.terminal[state] && length - i <= first) {
+				return true;
+			}
+			state = i < length ? ends.child(state, folded.charAt(length - 1 - i)) : -1;
+		}
+		if (contains.size > 0) {
+			for (int end = 0, state = 0; end <= length; end++) {
+				if (end > 0) {
+					state = contains.step(state, folded.charAt(end - 1));
+				}
+				int longest = contains.longest[state];
+				if (longest >= 0 && end > last && end - longest <= first) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * CASE_INSENSITIVE without UNICODE_CASE folds ASCII letters only.
+	 */
+	private static String fold(String text) {
+		char[] chars = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				if (chars == null) {
+					chars = text.toCharArray();
+				}
+				chars[i] = (char) (c + ('a' - 'A'));
+			}
+		}
+		return chars != null ? new String(chars) : text;
+	}
+
+	/*
+	 * Built with a map of edges, then compiled to sorted per-state arrays.
+	 * longest is the length of the longest phrase that is a suffix of a
+	 * state, or -1.
+	 */
+	private static class Trie {
+		private Map<Long, Integer> edges = new HashMap<Long, Integer>();
+		private List<StringBuilder> labels = new ArrayList<StringBuilder>();
+		private final List<Integer> depths = new ArrayList<Integer>();
+		private final List<Boolean> terminals = new ArrayList<Boolean>();
+		private char[][] keys;
+		private int[][] targets;
+		private int[] fail, longest;
+		private boolean[] terminal;
+		private int size;
+
+		Trie() {
+			newState(0);
+		}
+
+		void add(String phrase) {
+			int state = 0;
+			for (int i = 0; i < phrase.length(); i++) {
+				char c = phrase.charAt(i);
+				Integer next = edges.get(key(state, c));
+				if (next == null) {
+					edges.put(key(state, c), next = newState(i + 1));
+					labels.get(state).append(c);
+				}
+				state = next;
+			}
+			terminals.set(state, true);
+			size++;
+		}
+
+		void compile() {
+			int count = labels.size();
+			keys = new char[count][];
+			targets = new int[count][];
+			terminal = new boolean[count];
+			for (int state = 0; state < count; state++) {
+				char[] label = labels.get(state).toString().toCharArray();
+				Arrays.sort(label);
+				keys[state] = label;
+				targets[state] = new int[label.length];
+				for (int i = 0; i < label.length; i++) {
+					targets[state][i] = edges.get(key(state, label[i]));
+				}
+				terminal[state] = terminals.get(state);
+			}
+			fail = new int[count];
+			longest = new int[count];
+			longest[0] = terminal[0] ? 0 : -1;
+			int[] queue = new int[count];
+			int head = 0, tail = 0;
+			queue[tail++] = 0;
+			while (head < tail) {
+				int state = queue[head++];
+				for (int i = 0; i < keys[state].length; i++) {
+					int next = targets[state][i];
+					fail[next] = state == 0 ? 0 : step(fail[state], keys[state][i]);
+					longest[next] = terminal[next] ? depths.get(next) : longest[fail[next]];
+					queue[tail++] = next;
+				}
+			}
+			edges = null;
+			labels = null;
+		}
+
+		int child(int state, char c) {
+			int i = Arrays.binarySearch(keys[state], c);
+			return i >= 0 ? targets[state][i] : -1;
+		}
+
+		int step(int state, char c) {
+			while (true) {
+				int next = child(state, c);
+				if (next >= 0) {
+					return next;
+				}
+				if (state == 0) {
+					return 0;
+				}
+				state = fail[state];
+			}
+		}
+
+		private int newState(int depth) {
+			labels.add(new StringBuilder());
+			depths.add(depth);
+			terminals.add(false);
+			return labels.size() - 1;
+		}
+
+		private static long key(int state, char c) {
+			return ((long) state << 16) | c;
+		}
+	}
+}
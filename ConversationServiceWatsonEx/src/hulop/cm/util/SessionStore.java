@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/*
+ * Per-client conversation state with idle expiry and size bounds.
+ *
+ * Entries are kept in access order; when max_entries or max_bytes (as
+ * estimated by the weigher) is exceeded the least recently used entries are
+ * evicted. Idle entries are swept in the background. Bounds come from
+ * "session_config" in config.json.
+ *
+ * When snapshot_dir is configured and the store has a codec, the entries are
+ * written to <snapshot_dir>/<name>.sessions every snapshot_interval seconds and
+ * at shutdown. On startup the file is memory-mapped and only its index is read;
+ * each session is decoded the first time its client comes back.
+ *
+ * File format: magic, count, then per entry key length (short), UTF-8 key,
+ * last access (long), value length (int) and the encoded value.
+ */
+public class SessionStore<V> {
+
+	public interface Weigher<V> {
+		long weigh(V value);
+	}
+
+	public interface Codec<V> {
+		byte[] encode(V value) throws Exception;
+
+		V decode(byte[] data) throws Exception;
+	}
+
+	private static final int MAGIC = 0x48534e31; // "HSN1"
+
+	private static class Entry<V> {
+		final V value;
+		final long bytes;
+		long lastAccess;
+
+		Entry(V value, long bytes, long lastAccess) {
+			this.value = value;
+			this.bytes = bytes;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private static ScheduledExecutorService sSweeper;
+	private static final List<SessionStore<?>> stores = new CopyOnWriteArrayList<SessionStore<?>>();
+
+	private final String mName;
+	private final Weigher<V> mWeigher;
+	private final Codec<V> mCodec;
+	private final LinkedHashMap<String, Entry<V>> mMap = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+	private long mTtl = 60 * 60 * 1000, mMaxBytes = 256 * 1024 * 1024;
+	private int mMaxEntries = 10000;
+	private long mBytes, mEvictions, mExpirations, mFinished, mRestored;
+	private File mSnapshotFile;
+	private Map<String, long[]> mPending = new HashMap<String, long[]>(); // key -> {offset, length, lastAccess}
+	private ByteBuffer mPendingBuffer;
+	private final Object mSnapshotLock = new Object();
+
+	public SessionStore(String name, Weigher<V> weigher) {
+		this(name, weigher, null);
+	}
+
+	public SessionStore(String name, Weigher<V> weigher, Codec<V> codec) {
+		mName = name;
+		mWeigher = weigher;
+		mCodec = codec;
+		long snapshotInterval = 60;
+		try {
+			JSONObject config = CommonUtil.getConfig().optJSONObject("session_config");
+			if (config != null) {
+				mTtl = config.optLong("ttl_minutes", mTtl / 60000) * 60000;
+				mMaxEntries = config.optInt("max_entries", mMaxEntries);
+				mMaxBytes = config.optLong("max_bytes", mMaxBytes);
+				String dir = config.optString("snapshot_dir", null);
+				if (dir != null && !dir.isEmpty() && !dir.startsWith("!!") && codec != null) {
+					mSnapshotFile = new File(dir, name + ".sessions");
+				}
+				snapshotInterval = config.optLong("snapshot_interval", snapshotInterval);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (mSnapshotFile != null) {
+			restore();
+		}
+		getSweeper().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, 60, 60, TimeUnit.SECONDS);
+		if (mSnapshotFile != null) {
+			getSweeper().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					snapshot();
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+		}
+		stores.add(this);
+		Metrics.register("session." + name, new Metrics.Gauge() {
+			public Object get() throws JSONException {
+				return getStats();
+			}
+		});
+	}
+
+	public synchronized V get(String key) {
+		Entry<V> entry = mMap.get(key);
+		if (entry == null) {
+			entry = restoreEntry(key);
+		}
+		if (entry == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - entry.lastAccess > mTtl) {
+			removeEntry(key);
+			mExpirations++;
+			return null;
+		}
+		entry.lastAccess = now;
+		return entry.value;
+	}
+
+	public boolean containsKey(String key) {
+		return get(key) != null;
+	}
+
+	public synchronized V put(String key, V value) {
+		long bytes = mWeigher != null ? mWeigher.weigh(value) : 0;
+		mPending.remove(key);
+		Entry<V> last = mMap.put(key, new Entry<V>(value, bytes, System.currentTimeMillis()));
+		mBytes += bytes;
+		if (last != null) {
+			mBytes -= last.bytes;
+		}
+		evict(key);
+		return last != null ? last.value : null;
+	}
+
+	private void evict(String keep) {
+		for (Iterator<Map.Entry<String, Entry<V>>> it = mMap.entrySet().iterator(); it.hasNext()
+				&& (mMap.size() > mMaxEntries || mBytes > mMaxBytes);) {
+			Map.Entry<String, Entry<V>> eldest = it.next();
+			if (eldest.getKey().equals(keep)) {
+				break;
+			}
+			it.remove();
+			mBytes -= eldest.getValue().bytes;
+			mEvictions++;
+		}
+	}
+
+	public synchronized V remove(String key) {
+		mPending.remove(key);
+		Entry<V> entry = removeEntry(key);
+		return entry != null ? entry.value : null;
+	}
+
+	/*
+	 * Drops the session of a conversation that has reached context.finish.
+	 */
+	public synchronized void finish(String key) {
+		if (removeEntry(key) != null | mPending.remove(key) != null) {
+			mFinished++;
+		}
+	}
+
+	public synchronized int size() {
+		return mMap.size();
+	}
+
+	public synchronized void sweep() {
+		long limit = System.currentTimeMillis() - mTtl;
+		for (Iterator<Entry<V>> it = mMap.values().iterator(); it.hasNext();) {
+			Entry<V> entry = it.next();
+			if (entry.lastAccess < limit) {
+				it.remove();
+				mBytes -= entry.bytes;
+				mExpirations++;
+			}
+		}
+		for (Iterator<long[]> it = mPending.values().iterator(); it.hasNext();) {
+			if (it.next()[2] < limit) {
+				it.remove();
+				mExpirations++;
+			}
+		}
+		if (mPending.isEmpty()) {
+			mPendingBuffer = null;
+		}
+	}
+
+	public void snapshot() {
+		if (mSnapshotFile == null) {
+			return;
+		}
+		synchronized (mSnapshotLock) { // one writer per <name>.sessions.tmp
+			writeSnapshot();
+		}
+	}
+
+	private void writeSnapshot() {
+		List<Map.Entry<String, Entry<V>>> entries;
+		Map<String, long[]> pending;
+		ByteBuffer pendingBuffer;
+		synchronized (this) {
+			entries = new ArrayList<Map.Entry<String, Entry<V>>>(mMap.entrySet());
+			pending = new HashMap<String, long[]>(mPending);
+			pendingBuffer = mPendingBuffer;
+		}
+		long start = System.currentTimeMillis();
+		File temp = new File(mSnapshotFile.getPath() + ".tmp");
+		int count = 0;
+		try {
+			mSnapshotFile.getParentFile().mkdirs();
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536))) {
+				dos.writeInt(MAGIC);
+				dos.writeInt(entries.size() + pending.size());
+				for (Map.Entry<String, Entry<V>> entry : entries) {
+					byte[] data;
+					try {
+						data = mCodec.encode(entry.getValue().value);
+					} catch (Exception e) {
+						data = null;
+					}
+					count += writeEntry(dos, entry.getKey(), entry.getValue().lastAccess, data);
+				}
+				for (Map.Entry<String, long[]> entry : pending.entrySet()) {
+					count += writeEntry(dos, entry.getKey(), entry.getValue()[2], readPending(pendingBuffer, entry.getValue()));
+				}
+			}
+			try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+				file.seek(4);
+				file.writeInt(count);
+			}
+			Files.move(temp.toPath(), mSnapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			System.out.println(this + " saved " + count + " sessions in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+			System.err.println(mSnapshotFile + " - " + e.getMessage());
+			temp.delete();
+		}
+	}
+
+	private static int writeEntry(DataOutputStream dos, String key, long lastAccess, byte[] data) throws Exception {
+		if (data == null || key.length() > 0x3fff) {
+			return 0;
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		dos.writeShort(keyBytes.length);
+		dos.write(keyBytes);
+		dos.writeLong(lastAccess);
+		dos.writeInt(data.length);
+		dos.write(data);
+		return 1;
+	}
+
+	private synchronized void restore() {
+		if (!mSnapshotFile.isFile()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		try (RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "r"); FileChannel channel = file.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC) {
+				throw new Exception("bad snapshot");
+			}
+			long limit = System.currentTimeMillis() - mTtl;
+			for (int count = buffer.getInt(); count > 0; count--) {
+				byte[] key = new byte[buffer.getShort() & 0xffff];
+				buffer.get(key);
+				long lastAccess = buffer.getLong();
+				int length = buffer.getInt();
+				if (lastAccess >= limit) {
+					mPending.put(new String(key, StandardCharsets.UTF_8), new long[] { buffer.position(), length, lastAccess });
+				}
+				buffer.position(buffer.position() + length);
+			}
+			mPendingBuffer = buffer;
+			System.out.println(this + " indexed " + mPending.size() + " sessions in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (Exception e) {
+			System.err.println(mSnapshotFile + " - " + e.getMessage());
+			mPending.clear();
+		}
+	}
+
+	private Entry<V> restoreEntry(String key) {
+		long[] ref = mPending.remove(key);
+		if (ref == null) {
+			return null;
+		}
+		try {
+			V value = mCodec.decode(readPending(mPendingBuffer, ref));
+			long bytes = mWeigher != null ? mWeigher.weigh(value) : 0;
+			Entry<V> entry = new Entry<V>(value, bytes, ref[2]);
+			mMap.put(key, entry);
+			mBytes += bytes;
+			mRestored++;
+			evict(key);
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (mPending.isEmpty()) {
+				mPendingBuffer = null;
+			}
+		}
+	}
+
+	private static byte[] readPending(ByteBuffer buffer, long[] ref) {
+		byte[] data = new byte[(int) ref[1]];
+		ByteBuffer view = buffer.duplicate();
+		view.position((int) ref[0]);
+		view.get(data);
+		return data;
+	}
+
+	public synchronized JSONObject getStats() throws JSONException {
+		JSONObject stats = new JSONObject();
+		stats.put("size", mMap.size());
+		stats.put("bytes", mBytes);
+		stats.put("bytes_per_session", mMap.isEmpty() ? 0 : mBytes / mMap.size());
+		stats.put("evictions", mEvictions);
+		stats.put("expirations", mExpirations);
+		stats.put("finished", mFinished);
+		stats.put("pending", mPending.size());
+		stats.put("restored", mRestored);
+		return stats;
+	}
+
+	private Entry<V> removeEntry(String key) {
+		Entry<V> entry = mMap.remove(key);
+		if (entry != null) {
+			mBytes -= entry.bytes;
+		}
+		return entry;
+	}
+
+	private static synchronized ScheduledExecutorService getSweeper() {
+		if (sSweeper == null) {
+			sSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SessionStore-sweeper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sSweeper;
+	}
+
+	public static synchronized void shutdown() {
+		if (sSweeper != null) {
+			sSweeper.shutdownNow();
+			try {
+				sSweeper.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sSweeper = null;
+		}
+		for (SessionStore<?> store : stores) {
+			store.snapshot();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SessionStore(" + mName + ")";
+	}
+}
@@ -22,60 +22,88 @@
 
 package hulop.cm.util;
 
-import java.util.regex.Pattern;
-
 import org.apache.wink.json4j.JSONArray;
-import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 
 public class TextFilter {
 
-	private Pattern mPatRepeat;
+	private static final String[] REPEAT_KEYS = { "repeat_matches", "repeat_starts", "repeat_contains", "repeat_ends" };
 
-	public TextFilter() {
-		JSONObject config = CommonUtil.getConfig();
-		if (config != null) {
-			try {
-				JSONArray repeatPhrases = new JSONArray();
-				for (Object phrase : config.getJSONArray("repeat_matches")) {
-					repeatPhrases.add(phrase);
-				}
-				for (Object phrase : config.getJSONArray("repeat_starts")) {
-					repeatPhrases.add(phrase + ".*");
-				}
-				for (Object phrase : config.getJSONArray("repeat_contains")) {
-					repeatPhrases.add(".*" + phrase + ".*");
-				}
-				for (Object phrase : config.getJSONArray("repeat_ends")) {
-					repeatPhrases.add(".*" + phrase);
-				}
-				mPatRepeat = Pattern.compile("^(" + repeatPhrases.join("|") + ")$", Pattern.CASE_INSENSITIVE);
-				System.out.println(mPatRepeat.toString());
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+	private volatile RepeatMatcher mRepeatMatcher;
+	private volatile PhraseReplacer mPreprocessor;
+	private volatile long mRepeatFailedVersion = -1;
+
+	private final RemoteConfig.Listener mListener = new RemoteConfig.Listener() {
+		@Override
+		public void onChange(long version) {
+			getPreprocessor(version);
+			getRepeatMatcher(version);
 		}
+	};
+
+	public TextFilter() {
+		RemoteConfig.addListener(mListener);
+	}
+
+	public void close() {
+		RemoteConfig.removeListener(mListener);
 	}
 
 	public String preprocess(String text) {
 		if (text != null) {
-			for (Object obj : RemoteConfig.getArray("preprocess")) {
-				try {
-					JSONArray fromTo = (JSONArray) obj;
-					String toText = text.replace(fromTo.getString(0), fromTo.getString(1));
-					if (!toText.equals(text)) {
-						System.out.println(text + " => " + toText);
-						text = toText;
-					}
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+			String toText = getPreprocessor(RemoteConfig.getVersion()).replace(text);
+			if (!toText.equals(text)) {
+				System.out.println(text + " => " + toText);
+				text = toText;
 			}
 		}
 		return text;
 	}
 
+	/*
+	 * The preprocess rules are compiled once per config version, normally on
+	 * the config refresher thread.
+	 */
+	private PhraseReplacer getPreprocessor(long version) {
+		PhraseReplacer preprocessor = mPreprocessor;
+		if (preprocessor == null || preprocessor.version != version) {
+			long start = System.nanoTime();
+			JSONArray rules = RemoteConfig.getArray("preprocess");
+			mPreprocessor = preprocessor = new PhraseReplacer(rules, version);
+			System.out.println("preprocess: " + rules.size() + " rules in " + preprocessor.getStageCount() + " stages ("
+					+ (System.nanoTime() - start) / 1000000 + "ms)");
+		}
+		return preprocessor;
+	}
+
 	public boolean hasRepeatWord(String text) {
-		return text != null && mPatRepeat.matcher(text).matches();
+		if (text == null) {
+			return false;
+		}
+		RepeatMatcher matcher = getRepeatMatcher(RemoteConfig.getVersion());
+		return matcher != null && matcher.matches(text);
+	}
+
+	/*
+	 * Repeat phrases come from config.json unless the conversation config
+	 * has its own lists, and are reloaded with it.
+	 */
+	private RepeatMatcher getRepeatMatcher(long version) {
+		RepeatMatcher matcher = mRepeatMatcher;
+		JSONObject config = CommonUtil.getConfig();
+		if ((matcher == null || matcher.version != version) && config != null && mRepeatFailedVersion != version) {
+			try {
+				JSONArray[] phrases = new JSONArray[REPEAT_KEYS.length];
+				for (int i = 0; i < REPEAT_KEYS.length; i++) {
+					JSONArray remote = RemoteConfig.getArray(REPEAT_KEYS[i]);
+					phrases[i] = remote.size() > 0 ? remote : config.optJSONArray(REPEAT_KEYS[i], new JSONArray());
+				}
+				mRepeatMatcher = matcher = new RepeatMatcher(phrases[0], phrases[1], phrases[2], phrases[3], version);
+			} catch (Exception e) {
+				mRepeatFailedVersion = version; // keep the previous matcher until the config changes
+				e.printStackTrace();
+			}
+		}
+		return matcher;
 	}
 }
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.qa;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+import hulop.cm.util.PhraseReplacer;
+
+/*
+ * Compares the text and pron rendered from a ResponseTemplate with the
+ * regex based ResponseHandler it replaced, then times both.
+ *
+ * usage: ResponseTemplateCheck [turns]
+ *
+ * Random turns mix placeholders of known and unknown names, ellipses,
+ * newlines, stray @@ and ##, getInfo calls, and turns with and without an
+ * info map and a translation_map. Two known differences are counted
+ * separately: a placeholder name that itself contains "..." (the old code
+ * stripped the dots inside the marker first), and a getInfo pron that only
+ * matches the rendered text (the old code replaced it before translating).
+ */
+public class ResponseTemplateCheck {
+	private static final Pattern PAT_NAME = Pattern.compile("@@(.*?)##");
+	private static final String[] PARTS = { "hello ", "...", "..", ".", "@@ja_fac014##", "@@ja_fac042##", "@@Elevator##",
+			"@@unknown##", "Elevator", " ja_fac014 ", "ja_fac042", "\n", "@@", "##", "@@ja_fac0", "14##", "tr", "。" };
+
+	private static final List<String> NO_NAMES = Collections.emptyList();
+
+	private static JSONObject sTranslationMap;
+	private static PhraseReplacer sTranslator;
+
+	public static void main(String[] args) throws Exception {
+		PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		int turns = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		JSONObject infoMap = new JSONObject("{\"ja_fac014\":{\"name\":\"ja_fac014\",\"pron\":\"トイレ\"},"
+				+ "\"ja_fac042\":{\"name\":\"ja_fac042\",\"pron\":\"エレベーター...\"},\"Elevator\":{\"name\":\"Elevator\"}}");
+		JSONObject translationMap = new JSONObject("{\"Elevator\":{\"pron\":\"EV\"},\"ja_fac014\":{\"pron\":\"tr14\"},"
+				+ "\"unknown\":{\"pron\":\"unk\"},\"tr\":{\"pron\":\"TR.\"},\"bad\":1}");
+		Random random = new Random(1);
+		int same = 0, dotNames = 0, lateNames = 0, mismatches = 0;
+		for (int i = 0; i < turns; i++) {
+			String lang = i % 3 == 0 ? "en" : "ja";
+			List<String> lines = new ArrayList<String>();
+			for (int n = 1 + random.nextInt(3); n > 0; n--) {
+				StringBuilder sb = new StringBuilder();
+				for (int k = random.nextInt(8); k > 0; k--) {
+					sb.append(PARTS[random.nextInt(PARTS.length)]);
+				}
+				lines.add(sb.toString());
+			}
+			String join = String.join("\n", lines);
+			JSONObject infos = random.nextInt(4) > 0 ? infoMap : null;
+			JSONObject translations = random.nextBoolean() ? translationMap : null;
+			List<String> getInfo = new ArrayList<String>();
+			switch (random.nextInt(3)) {
+			case 2:
+				getInfo.add("ja_fac042");
+			case 1:
+				getInfo.add("ja_fac014");
+			}
+			String[] expected = legacy(join, lang, infos, translations, getInfo);
+			String[] actual = render(join, lang, infos, translations, getInfo);
+			if (expected[0].equals(actual[0]) && expected[1].equals(actual[1])) {
+				same++;
+			} else if (hasDotName(join)) {
+				dotNames++;
+			} else if (!getInfo.isEmpty() && Arrays.equals(legacy(join, lang, infos, translations, NO_NAMES), render(join, lang, infos, translations, NO_NAMES))) {
+				lateNames++;
+			} else if (mismatches++ < 5) {
+				out.println("mismatch: " + join.replace("\n", "\\n") + " expected=" + expected[0].replace("\n", "\\n") + " / "
+						+ expected[1].replace("\n", "\\n") + " actual=" + actual[0].replace("\n", "\\n") + " / "
+						+ actual[1].replace("\n", "\\n"));
+			}
+		}
+		out.println("turns " + turns + " same " + same + " dots in a placeholder name " + dotNames + " getInfo prons after rendering "
+				+ lateNames + " mismatches " + mismatches);
+
+		JSONObject big = new JSONObject();
+		for (int i = 0; i < 200; i++) {
+			big.put("name" + i, new JSONObject().put("pron", "pron" + i));
+		}
+		Object[][] cases = {
+				{ "2 lines, 3 placeholders", "@@ja_fac014##は2階にあります...\n@@ja_fac042##の隣です。@@Elevator##で上がってください", null },
+				{ "20 lines, 60 placeholders", String.join("\n", Collections.nCopies(20, "@@ja_fac014##は2階にあります...@@ja_fac042##の隣、@@unknown##")), null },
+				{ "plain text, 200 translations", "トイレは2階にあります...\nエレベーターで上がってください。name17 の隣です", big } };
+		out.println("turn                             before      after");
+		for (int round = 0; round < 3; round++) { // the last round is reported
+			for (Object[] c : cases) {
+				String join = (String) c[1];
+				JSONObject translations = (JSONObject) c[2];
+				int n = 20000;
+				long start = System.nanoTime();
+				for (int i = 0; i < n; i++) {
+					legacy(join, "ja", infoMap, translations, NO_NAMES);
+				}
+				long before = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < n; i++) {
+					render(join, "ja", infoMap, translations, NO_NAMES);
+				}
+				long after = System.nanoTime() - start;
+				if (round == 2) {
+					out.printf("%-30s %8.1f us %8.1f us%n", c[0], before / 1000.0 / n, after / 1000.0 / n);
+				}
+			}
+		}
+	}
+
+	/*
+	 * ResponseHandler as it is now, with the info map lookups of Extra
+	 * replaced by infoMap.
+	 */
+	private static String[] render(String join, String lang, JSONObject infoMap, JSONObject translation_map, List<String> getInfo) throws JSONException {
+		ResponseTemplate template = new ResponseTemplate(join);
+		JSONObject[] infos = new JSONObject[template.size()];
+		boolean converted = false;
+		if (infoMap != null) {
+			for (int i = 0; i < infos.length; i++) {
+				if ((infos[i] = infoMap.optJSONObject(template.getName(i))) != null) {
+					converted = true;
+				}
+			}
+		}
+		Map<String, String> pronNames = new LinkedHashMap<String, String>();
+		for (String name : getInfo) {
+			JSONObject info = infoMap != null ? infoMap.optJSONObject(name) : null;
+			if (info != null && !converted && info.has("pron") && "ja".equals(lang)) {
+				pronNames.put(name, info.getString("pron"));
+			}
+		}
+		String[] output = template.render(infos, translation_map, "ja".equals(lang) ? "。\n\n" : "\n\n");
+		for (Map.Entry<String, String> entry : pronNames.entrySet()) {
+			output[1] = output[1].replace(entry.getKey(), entry.getValue());
+		}
+		if (translation_map != null && !template.isTranslated(infos)) {
+			output[1] = getTranslator(translation_map).replace(output[1]);
+		}
+		return output;
+	}
+
+	/*
+	 * As WatsonHelper.getTranslator.
+	 */
+	private static PhraseReplacer getTranslator(JSONObject translation_map) throws JSONException {
+		if (sTranslator == null || !translation_map.equals(sTranslationMap)) {
+			JSONArray rules = new JSONArray();
+			for (Iterator<String> it = translation_map.keys(); it.hasNext();) {
+				String name = it.next();
+				JSONObject translation = translation_map.optJSONObject(name);
+				String p = translation != null ? translation.optString("pron") : null;
+				if (p != null) {
+					JSONArray rule = new JSONArray();
+					rule.add(name);
+					rule.add(p);
+					rules.add(rule);
+				}
+			}
+			sTranslator = new PhraseReplacer(rules);
+			sTranslationMap = new JSONObject(translation_map.toString());
+		}
+		return sTranslator;
+	}
+
+	/*
+	 * The old ResponseHandler: convert and translate with PAT_NAME, then the
+	 * ellipsis replaceAll, for text and pron.
+	 */
+	private static String[] legacy(String join, String lang, JSONObject infoMap, JSONObject translation_map, List<String> getInfo) throws JSONException {
+		boolean[] converted = new boolean[1];
+		String text = convert(join, false, infoMap, converted).replaceAll("(\\.{3,})", "");
+		String pron = convert(join, true, infoMap, converted).replaceAll("(\\.{3,})", "ja".equals(lang) ? "。\n\n" : "\n\n");
+		for (String name : getInfo) {
+			JSONObject info = infoMap != null ? infoMap.optJSONObject(name) : null;
+			if (info != null && !converted[0] && info.has("pron") && "ja".equals(lang)) {
+				pron = pron.replace(name, info.getString("pron"));
+			}
+		}
+		return new String[] { translate(text, false, translation_map), translate(pron, true, translation_map) };
+	}
+
+	private static String convert(String before, boolean pron, JSONObject infoMap, boolean[] converted) {
+		if (infoMap == null) {
+			return before;
+		}
+		StringBuffer sb = new StringBuffer();
+		Matcher m = PAT_NAME.matcher(before);
+		while (m.find()) {
+			String name = m.group(1);
+			JSONObject info = infoMap.optJSONObject(name);
+			if (info == null) {
+				name = m.group(0);
+			} else {
+				if (pron) {
+					try {
+						name = info.getString("pron");
+					} catch (Exception e) {
+					}
+				}
+				converted[0] = true;
+			}
+			m.appendReplacement(sb, name);
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	private static String translate(String before, boolean pron, JSONObject translation_map) {
+		if (translation_map == null) {
+			return before;
+		}
+		boolean translated = false;
+		StringBuffer sb = new StringBuffer();
+		Matcher m = PAT_NAME.matcher(before);
+		while (m.find()) {
+			String name = m.group(1);
+			if (pron) {
+				try {
+					name = translation_map.getJSONObject(name).getString("pron");
+				} catch (Exception e) {
+				}
+			}
+			translated = true;
+			m.appendReplacement(sb, name);
+		}
+		m.appendTail(sb);
+		if (translated || !pron) {
+			return sb.toString();
+		}
+		String after = before;
+		for (Iterator<String> it = translation_map.keys(); it.hasNext();) {
+			String name = it.next();
+			try {
+				String p = translation_map.getJSONObject(name).optString("pron");
+				if (p != null) {
+					after = after.replace(name, p);
+				}
+			} catch (Exception e) {
+			}
+		}
+		return after;
+	}
+
+	private static boolean hasDotName(String join) {
+		ResponseTemplate template = new ResponseTemplate(join);
+		for (int i = 0; i < template.size(); i++) {
+			if (template.getName(i).contains("...")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
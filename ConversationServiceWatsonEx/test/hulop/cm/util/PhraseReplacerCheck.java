@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.wink.json4j.JSONArray;
+
+/*
+ * Compares PhraseReplacer with the sequential String.replace loop that
+ * TextFilter.preprocess used to run, then times both.
+ *
+ * usage: PhraseReplacerCheck [rule sets] [benchmark rules...]
+ *
+ * Random rule sets use 3- and 8-letter alphabets so that patterns overlap,
+ * delete text, rewrite each other's output and, now and then, are empty.
+ * Each rule set is checked on 5 random inputs. The benchmark uses kana
+ * name-like rules and 1000 inputs, a third of which contain a pattern.
+ */
+public class PhraseReplacerCheck {
+
+	public static void main(String[] args) throws Exception {
+		int sets = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		Random random = new Random(1);
+		int cases = 0, mismatches = 0;
+		for (int i = 0; i < sets; i++) {
+			String alphabet = i % 2 == 0 ? "abc" : "abcdefgh";
+			JSONArray rules = new JSONArray();
+			for (int n = 1 + random.nextInt(6); n > 0; n--) {
+				rules.add(rule(randomString(random, alphabet, i % 50 == 0 ? 0 : 1, 3), randomString(random, alphabet + "XY", 0, 3)));
+			}
+			PhraseReplacer replacer = new PhraseReplacer(rules, 0);
+			for (int k = 0; k < 5; k++) {
+				String text = randomString(random, alphabet, 0, 20);
+				cases++;
+				String expected = sequential(rules, text), actual = replacer.replace(text);
+				if (!actual.equals(expected) && mismatches++ < 5) {
+					System.out.println("mismatch: rules=" + rules + " text=" + text + " expected=" + expected + " actual=" + actual);
+				}
+			}
+		}
+		System.out.println("random cases " + cases + " mismatches " + mismatches);
+
+		int[] sizes = { 100, 1000, 5000 };
+		if (args.length > 1) {
+			sizes = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				sizes[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.println("rules  stages  compile  sequential  compiled (per input)");
+		for (int size : sizes) {
+			benchmark(random, size);
+		}
+	}
+
+	private static void benchmark(Random random, int size) throws Exception {
+		String kana = "アイウエオカキクケコサシスセソタチツテトナニヌネノハヒフヘホマミムメモヤユヨラリルレロワン";
+		JSONArray rules = new JSONArray();
+		Set<String> seen = new HashSet<String>();
+		while (rules.size() < size) {
+			String from = randomString(random, kana, 3, 8);
+			if (seen.add(from)) {
+				rules.add(rule(from, randomString(random, "abcdefghijklmnop", 3, 8)));
+			}
+		}
+		List<String> texts = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			String text = randomString(random, kana, 10, 40);
+			if (i % 3 == 0) {
+				text += ((JSONArray) rules.get(random.nextInt(rules.size()))).getString(0) + randomString(random, kana, 0, 10);
+			}
+			texts.add(text);
+		}
+		long start = System.nanoTime();
+		PhraseReplacer replacer = new PhraseReplacer(rules, 0);
+		long compile = System.nanoTime() - start;
+		for (String text : texts) {
+			if (!replacer.replace(text).equals(sequential(rules, text))) {
+				System.out.println("benchmark mismatch: " + text);
+			}
+		}
+		long sequential = 0, compiled = 0;
+		for (int round = 0; round < 3; round++) { // the last round is reported
+			start = System.nanoTime();
+			for (String text : texts) {
+				sequential(rules, text);
+			}
+			sequential = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (String text : texts) {
+				replacer.replace(text);
+			}
+			compiled = System.nanoTime() - start;
+		}
+		System.out.printf("%5d  %6d  %5d ms  %7.1f us  %7.1f us%n", size, replacer.getStageCount(), compile / 1000000,
+				sequential / 1000.0 / texts.size(), compiled / 1000.0 / texts.size());
+	}
+
+	/*
+	 * The old TextFilter.preprocess.
+	 */
+	private static String sequential(JSONArray rules, String text) throws Exception {
+		for (Object obj : rules) {
+			JSONArray fromTo = (JSONArray) obj;
+			text = text.replace(fromTo.getString(0), fromTo.getString(1));
+		}
+		return text;
+	}
+
+	private static JSONArray rule(String from, String to) {
+		JSONArray rule = new JSONArray();
+		rule.add(from);
+		rule.add(to);
+		return rule;
+	}
+
+	private static String randomString(Random random, String alphabet, int min, int max) {
+		StringBuilder sb = new StringBuilder();
+		for (int n = min + random.nextInt(max - min + 1); n > 0; n--) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2014, 2023  IBM Corporation, Carnegie Mellon University and others
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *******************************************************************************/
+
+package hulop.cm.util;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.apache.wink.json4j.JSON;
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONObject;
+
+/*
+ * Compares RepeatMatcher with the ^(m|s.*|.*c.*|.*e)$ pattern that
+ * TextFilter.hasRepeatWord used to build, then times both.
+ *
+ * usage: RepeatMatcherCheck [phrase sets] [config.json]
+ *
+ * Random phrase sets mix upper and lower case, regex syntax, non-ASCII,
+ * newlines and empty phrases; each set is checked on 10 random inputs. Sets
+ * the old code could not compile are skipped. The benchmark uses the
+ * repeat_* phrases of config.json (default src/data/config.json) on long
+ * near-miss inputs.
+ */
+public class RepeatMatcherCheck {
+	private static final String[] REPEAT_KEYS = { "repeat_matches", "repeat_starts", "repeat_contains", "repeat_ends" };
+
+	public static void main(String[] args) throws Exception {
+		PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+		System.setOut(new PrintStream(new OutputStream() { // RepeatMatcher logs every compile
+			@Override
+			public void write(int b) {
+			}
+		}));
+		int sets = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Random random = new Random(7);
+		int cases = 0, matching = 0, mismatches = 0;
+		for (int i = 0; i < sets; i++) {
+			List<List<String>> phrases = new ArrayList<List<String>>();
+			for (int k = 0; k < REPEAT_KEYS.length; k++) {
+				List<String> list = new ArrayList<String>();
+				for (int n = random.nextInt(3); n > 0; n--) {
+					list.add(randomString(random, i % 3 == 0 ? "abAB\n.?é" : "abAB", i % 40 == 0 ? 0 : 1, 3));
+				}
+				phrases.add(list);
+			}
+			Pattern pattern;
+			try {
+				pattern = legacyPattern(phrases);
+			} catch (Exception e) {
+				continue;
+			}
+			RepeatMatcher matcher = newMatcher(phrases);
+			for (int k = 0; k < 10; k++) {
+				String text = randomString(random, "abAB\n\r.é", 0, 8);
+				boolean expected = pattern.matcher(text).matches(), actual = matcher.matches(text);
+				cases++;
+				if (expected) {
+					matching++;
+				}
+				if (expected != actual && mismatches++ < 5) {
+					out.println("mismatch: phrases=" + phrases + " text=" + text.replace("\n", "\\n") + " expected=" + expected);
+				}
+			}
+		}
+		out.println("random cases " + cases + " (matching " + matching + ") mismatches " + mismatches);
+
+		JSONObject config;
+		try (Reader reader = new InputStreamReader(new FileInputStream(new File(args.length > 1 ? args[1] : "src/data/config.json")), StandardCharsets.UTF_8)) {
+			config = (JSONObject) JSON.parse(reader);
+		}
+		List<List<String>> phrases = new ArrayList<List<String>>();
+		for (String key : REPEAT_KEYS) {
+			List<String> list = new ArrayList<String>();
+			for (Object phrase : config.optJSONArray(key, new JSONArray())) {
+				list.add((String) phrase);
+			}
+			phrases.add(list);
+		}
+		Pattern pattern = legacyPattern(phrases);
+		RepeatMatcher matcher = newMatcher(phrases);
+		out.println("length  input     regex        matcher");
+		for (int round = 0; round < 2; round++) { // the first round warms up
+			for (int length : new int[] { 100, 1000, 10000, 100000 }) {
+				for (String text : new String[] { repeat("聞き取れま", length / 5), repeat("Once mor", length / 8), repeat("もう一", length / 3), repeat("a", length) }) {
+					if (pattern.matcher(text).matches() != matcher.matches(text)) {
+						out.println("benchmark mismatch: " + text.substring(0, 8));
+					}
+					int reps = Math.max(3, 200000 / length);
+					long start = System.nanoTime();
+					for (int i = 0; i < reps; i++) {
+						pattern.matcher(text).matches();
+					}
+					long regex = System.nanoTime() - start;
+					start = System.nanoTime();
+					for (int i = 0; i < reps; i++) {
+						matcher.matches(text);
+					}
+					long trie = System.nanoTime() - start;
+					if (round > 0) {
+						out.printf("%6d  %-8s %9.1f us  %9.1f us%n", text.length(), text.substring(0, 3), regex / 1000.0 / reps, trie / 1000.0 / reps);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The pattern of the old TextFilter constructor.
+	 */
+	private static Pattern legacyPattern(List<List<String>> phrases) {
+		JSONArray repeatPhrases = new JSONArray();
+		for (String phrase : phrases.get(0)) {
+			repeatPhrases.add(phrase);
+		}
+		for (String phrase : phrases.get(1)) {
+			repeatPhrases.add(phrase + ".*");
+		}
+		for (String phrase : phrases.get(2)) {
+			repeatPhrases.add(".*" + phrase + ".*");
+		}
+		for (String phrase : phrases.get(3)) {
+			repeatPhrases.add(".*" + phrase);
+		}
+		return Pattern.compile("^(" + repeatPhrases.join("|") + ")$", Pattern.CASE_INSENSITIVE);
+	}
+
+	private static RepeatMatcher newMatcher(List<List<String>> phrases) {
+		return new RepeatMatcher(phrases.get(0), phrases.get(1), phrases.get(2), phrases.get(3), 0);
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static String randomString(Random random, String alphabet, int min, int max) {
+		StringBuilder sb = new StringBuilder();
+		for (int n = min + random.nextInt(max - min + 1); n > 0; n--) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+}